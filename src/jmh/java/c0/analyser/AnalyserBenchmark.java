@@ -0,0 +1,76 @@
+package c0.analyser;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c0.bench.Programs;
+import c0.emitter.BinaryEmitter;
+import c0.emitter.Emitter;
+import c0.emitter.TextEmitter;
+import c0.error.CompileError;
+import c0.tokenizer.Static;
+import c0.tokenizer.StringIter;
+import c0.tokenizer.Tokenizer;
+
+/**
+ * 从源码到输出的完整编译流程（和 App 的 --analyse 相同），输出丢弃
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyserBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int functions;
+
+    @Param({ "2", "8" })
+    public int depth;
+
+    @Param({ "1", "16" })
+    public int strings;
+
+    @Param({ "text", "binary" })
+    public String emit;
+
+    /** 分析函数体的线程数，1 是顺序分析 */
+    @Param({ "1", "4" })
+    public int jobs;
+
+    private char[] source;
+
+    private PrintStream output = new PrintStream(OutputStream.nullOutputStream());
+
+    @Setup
+    public void setup() {
+        source = Programs.generate(functions, depth, strings).toCharArray();
+    }
+
+    @Benchmark
+    public Object analyse() throws CompileError, IOException {
+        var tokens = new Tokenizer(new StringIter(source.clone(), source.length)).tokenizeAll();
+        var pair = new Static(tokens).analyse();
+        Emitter emitter = emit.equals("binary") ? new BinaryEmitter(output) : new TextEmitter(output);
+        emitter.begin(pair.getKey());
+        var analyser = new Analyser(tokens, pair.getKey(), emitter, pair.getValue());
+        analyser.setParallelism(jobs);
+        var result = analyser.analyse();
+        emitter.finish();
+        return result;
+    }
+}
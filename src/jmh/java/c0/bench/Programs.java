@@ -0,0 +1,70 @@
+package c0.bench;
+
+/**
+ * 生成基准测试用的 C0 程序
+ */
+public final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * 生成一个能通过编译的程序
+     *
+     * @param functions 函数个数（不含 main）
+     * @param depth     每个函数里 while/if 的嵌套层数
+     * @param strings   每个函数里 putstr 字符串字面量的个数
+     */
+    public static String generate(int functions, int depth, int strings) {
+        var sb = new StringBuilder();
+        sb.append("let counter: int = 0;\n");
+        sb.append("const scale: double = 1.5;\n");
+        for (int f = 0; f < functions; f++) {
+            sb.append("fn f").append(f).append("(a: int, b: double) -> int {\n");
+            sb.append("    let x: int = a * 3 + ").append(f).append(" - (a / 2);\n");
+            sb.append("    let y: double = b * scale + 0.25;\n");
+            nest(sb, depth, 1);
+            for (int s = 0; s < strings; s++) {
+                indent(sb, 1).append("putstr(\"function ").append(f).append(" string ").append(s)
+                        .append(" with some padding text\");\n");
+            }
+            if (f > 0) {
+                indent(sb, 1).append("x = f").append(f - 1).append("(x, y) + counter;\n");
+            }
+            indent(sb, 1).append("return x;\n");
+            sb.append("}\n");
+        }
+        sb.append("fn main() -> void {\n");
+        if (functions > 0) {
+            sb.append("    putint(f").append(functions - 1).append("(3, 1.0));\n");
+        }
+        sb.append("    putln();\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void nest(StringBuilder sb, int depth, int level) {
+        if (depth == 0) {
+            indent(sb, level).append("x = x + 1;\n");
+            indent(sb, level).append("y = y - 0.5;\n");
+            return;
+        }
+        if (depth % 2 == 1) {
+            indent(sb, level).append("while x < ").append(depth * 10).append(" {\n");
+            nest(sb, depth - 1, level + 1);
+            indent(sb, level + 1).append("x = x + 1;\n");
+        } else {
+            indent(sb, level).append("if x > ").append(depth).append(" {\n");
+            nest(sb, depth - 1, level + 1);
+            indent(sb, level).append("} else {\n");
+            indent(sb, level + 1).append("putint(x);\n");
+        }
+        indent(sb, level).append("}\n");
+    }
+
+    private static StringBuilder indent(StringBuilder sb, int level) {
+        for (int i = 0; i < level; i++) {
+            sb.append("    ");
+        }
+        return sb;
+    }
+}
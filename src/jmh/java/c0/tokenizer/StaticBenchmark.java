@@ -0,0 +1,51 @@
+package c0.tokenizer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c0.bench.Programs;
+import c0.error.CompileError;
+
+/**
+ * Static 预扫描，token 事先准备好，只测 analyse 本身
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StaticBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int functions;
+
+    @Param({ "2", "8" })
+    public int depth;
+
+    @Param({ "1", "16" })
+    public int strings;
+
+    private TokenStream tokens;
+
+    @Setup
+    public void setup() throws CompileError {
+        var source = Programs.generate(functions, depth, strings);
+        tokens = new Tokenizer(new StringIter(source)).tokenizeAll();
+    }
+
+    @Benchmark
+    public Object analyse() throws CompileError {
+        return new Static(tokens).analyse();
+    }
+}
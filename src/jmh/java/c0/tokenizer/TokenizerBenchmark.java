@@ -0,0 +1,76 @@
+package c0.tokenizer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c0.bench.Programs;
+import c0.error.TokenizeError;
+
+/**
+ * Tokenizer.nextToken 的吞吐量，tokens 计数器给出每秒的 token 数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int functions;
+
+    @Param({ "2", "8" })
+    public int depth;
+
+    @Param({ "1", "16" })
+    public int strings;
+
+    private char[] source;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        source = Programs.generate(functions, depth, strings).toCharArray();
+    }
+
+    @Benchmark
+    public int nextToken(Counters counters) throws TokenizeError {
+        var tokenizer = new Tokenizer(new StringIter(source.clone(), source.length));
+        int n = 0;
+        while (tokenizer.nextToken().getTokenType() != TokenType.EOF) {
+            n++;
+        }
+        counters.tokens += n;
+        return n;
+    }
+
+    @Benchmark
+    public TokenStream tokenizeAll(Counters counters) throws TokenizeError {
+        var tokens = new Tokenizer(new StringIter(source.clone(), source.length)).tokenizeAll();
+        counters.tokens += tokens.size();
+        return tokens;
+    }
+}
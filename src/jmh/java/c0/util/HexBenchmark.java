@@ -0,0 +1,80 @@
+package c0.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 输出操作数用的 hex32/hex64，每次调用处理 OPERANDS 个数
+ *
+ * toString 每个数生成一个 String，append 写进同一个 StringBuilder（TextEmitter 的用法）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+    private static final int OPERANDS = 1024;
+
+    private int[] operands = new int[OPERANDS];
+
+    private StringBuilder sb = new StringBuilder(OPERANDS * 24);
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        for (int i = 0; i < OPERANDS; i++) {
+            operands[i] = random.nextInt(1 << (1 + random.nextInt(30)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERANDS)
+    public void hex32(Blackhole bh) {
+        for (int x : operands) {
+            bh.consume(HexWriter.hex32(x));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERANDS)
+    public void hex64(Blackhole bh) {
+        for (int x : operands) {
+            bh.consume(HexWriter.hex64(x));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERANDS)
+    public int hex32Append() {
+        sb.setLength(0);
+        for (int x : operands) {
+            HexWriter.hex32(sb, x);
+        }
+        return sb.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERANDS)
+    public int hex64Append() {
+        sb.setLength(0);
+        for (int x : operands) {
+            HexWriter.hex64(sb, x);
+        }
+        return sb.length();
+    }
+}
@@ -0,0 +1,66 @@
+package c0.vm;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c0.instruction.Instruction;
+import c0.instruction.Operation;
+
+/**
+ * MiniVm.Run，程序是 size 组 “读变量、算术、写回” 的指令
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiniVmBenchmark {
+    @Param({ "100", "10000" })
+    public int size;
+
+    private List<Instruction> instructions;
+
+    private PrintStream output = new PrintStream(OutputStream.nullOutputStream());
+
+    /** 栈是预先分配的，同一个 MiniVm 可以反复 Run */
+    private MiniVm vm;
+
+    @Setup
+    public void setup() {
+        instructions = new ArrayList<>();
+        // 栈底两个变量
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LIT, 0));
+        var ops = new Operation[] { Operation.ADD, Operation.SUB, Operation.MUL, Operation.DIV };
+        for (int i = 0; i < size; i++) {
+            instructions.add(new Instruction(Operation.LOD, 1));
+            instructions.add(new Instruction(Operation.LIT, i % 7 + 1));
+            instructions.add(new Instruction(ops[i % ops.length]));
+            instructions.add(new Instruction(Operation.STO, 1));
+        }
+        instructions.add(new Instruction(Operation.LOD, 1));
+        instructions.add(new Instruction(Operation.WRT));
+        vm = new MiniVm(instructions, output);
+    }
+
+    @Benchmark
+    public void run() {
+        vm.Run();
+    }
+}
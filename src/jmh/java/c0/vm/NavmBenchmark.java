@@ -0,0 +1,84 @@
+package c0.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import c0.analyser.Analyser;
+import c0.emitter.ModuleEmitter;
+import c0.tokenizer.Static;
+import c0.tokenizer.StringIter;
+import c0.tokenizer.Tokenizer;
+
+/**
+ * Navm.run，执行一个编译好的 C0 程序：循环里调用函数、读写局部和全局变量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NavmBenchmark {
+    /** 循环次数 */
+    @Param({ "1000", "100000" })
+    public int iterations;
+
+    @Param({ "0", "1" })
+    public int optimization;
+
+    /** 是否打开 JIT */
+    @Param({ "false", "true" })
+    public boolean jit;
+
+    private Navm vm;
+
+    @Setup
+    public void setup() throws Exception {
+        var source = "let total: int = 0;\n"
+                + "fn step(x: int, y: int) -> int {\n"
+                + "    let t: int = x * 3 - y / 2;\n"
+                + "    if t > 1000 { t = t - 1000; }\n"
+                + "    return t + 1;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < " + iterations + " {\n"
+                + "        s = step(s, i);\n"
+                + "        total = total + s;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(total);\n"
+                + "    putln();\n"
+                + "}\n";
+        var tokens = new Tokenizer(new StringIter(source)).tokenizeAll();
+        var pair = new Static(tokens).analyse();
+        var emitter = new ModuleEmitter();
+        emitter.begin(pair.getKey());
+        var analyser = new Analyser(tokens, pair.getKey(), emitter, pair.getValue());
+        analyser.setOptimization(optimization);
+        analyser.analyse();
+        emitter.finish();
+        vm = new Navm(emitter.getModule(), new ByteArrayInputStream(new byte[0]),
+                new PrintStream(OutputStream.nullOutputStream()), Navm.DEFAULT_MAX_DEPTH, jit);
+    }
+
+    @Benchmark
+    public void run() {
+        vm.run();
+    }
+}
@@ -1,27 +1,35 @@
 package c0;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 
 import org.apache.commons.math3.util.Pair;
 
 import c0.analyser.Analyser;
+import c0.analyser.FunctionCache;
+import c0.emitter.BinaryEmitter;
+import c0.emitter.Emitter;
+import c0.emitter.ModuleEmitter;
+import c0.emitter.TextEmitter;
 import c0.error.CompileError;
 import c0.error.TokenizeError;
-import c0.instruction.Instruction;
+import c0.error.VmError;
 import c0.tokenizer.Static;
 import c0.tokenizer.StringIter;
-import c0.tokenizer.Token;
-import c0.tokenizer.TokenType;
+import c0.tokenizer.TokenStream;
 import c0.tokenizer.Tokenizer;
+import c0.vm.Module;
+import c0.vm.Navm;
+import c0.vm.Profile;
 
 import net.sourceforge.argparse4j.*;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -31,10 +39,7 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 public class App {
-	static List<String> kufunction = new ArrayList<String>();
-	
 	public static void main(String[] args) throws CompileError {
-    	init();
 		var argparse = buildArgparse();
         Namespace result;
         try {
@@ -45,56 +50,231 @@ public class App {
             return;
         }
 
-        var inputFileName = result.getString("input");
-        var outputFileName = result.getString("output");
-
-        InputStream input;
-        if (inputFileName.equals("-")) {
-            input = System.in;
-        } else {
+        if (result.getString("server") != null) {
+            var server = new Server(result.getInt("workers"));
             try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
-                System.err.println("Cannot find input file.");
+                if (result.getString("server").equals("-")) {
+                    server.serve(System.in, System.out);
+                } else {
+                    server.listen(Path.of(result.getString("server")));
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot start compile server.");
                 e.printStackTrace();
                 System.exit(2);
-                return;
+            } finally {
+                server.shutdown();
             }
+            return;
         }
 
-        PrintStream output;
-        if (outputFileName.equals("-")) {
-            output = System.out;
-        } else {
+        List<String> inputs = result.getList("input");
+        int status;
+        if (result.getString("outDir") != null) {
+            if (result.getString("output") != null) {
+                System.err.println("Use either -o/--output or --out-dir.");
+                System.exit(2);
+            }
+            if (result.getBoolean("run")) {
+                System.err.println("Use either --run or --out-dir.");
+                System.exit(2);
+            }
+            Map<Path, Path> files;
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
-            } catch (FileNotFoundException e) {
-                System.err.println("Cannot open output file.");
-                e.printStackTrace();
+                files = Batch.expand(inputs);
+            } catch (IOException e) {
+                System.err.println("Cannot find input file.");
+                System.err.println(e.getMessage());
                 System.exit(2);
                 return;
             }
+            var batch = new Batch(result.getInt("workers"));
+            status = batch.run(result, files, Path.of(result.getString("outDir")), System.out);
+        } else if (inputs.size() > 1) {
+            System.err.println("Use --out-dir to compile several files.");
+            status = 2;
+        } else {
+            var input = inputs.isEmpty() ? null : inputs.get(0);
+            status = compile(withFiles(result, input, result.getString("output")), System.err);
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * 复制一份参数，换成一个输入文件和一个输出文件
+     */
+    static Namespace withFiles(Namespace args, String input, String output) {
+        Map<String, Object> attrs = new HashMap<>(args.getAttrs());
+        attrs.put("input", input);
+        attrs.put("output", output);
+        return new Namespace(attrs);
+    }
+
+    /**
+     * 按命令行参数编译一个文件，错误写到 err
+     *
+     * 不调用 System.exit，编译服务里每个任务都调用它
+     *
+     * @return 退出码，0 表示成功
+     */
+    static int compile(Namespace result, PrintStream err) {
+        var inputFileName = result.getString("input");
+        var outputFileName = result.getString("output");
+        boolean run = result.getBoolean("run");
+        // --run 时输出的是程序的输出，默认写到标准输出
+        if (run && outputFileName == null) {
+            outputFileName = "-";
+        }
+        if (inputFileName == null || outputFileName == null) {
+            err.println("Please specify an input file and -o/--output.");
+            return 2;
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
+        if (run && !result.getBoolean("analyse")) {
+            return runModule(result, inputFileName, outputFileName, err);
+        }
+
+        StringIter iter;
+        try {
+            if (inputFileName.equals("-")) {
+                iter = StringIter.read(System.in);
+            } else {
+                iter = StringIter.open(Path.of(inputFileName));
+            }
+        } catch (IOException e) {
+            err.println("Cannot find input file.");
+            e.printStackTrace(err);
+            return 2;
+        }
+
+        var output = openOutput(outputFileName, err);
+        if (output == null) {
+            return 2;
+        }
+        try {
+            return compile(result, iter, output, err);
+        } finally {
+            if (output != System.out) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * 打开输出文件，- 是标准输出，失败时返回 null
+     */
+    private static PrintStream openOutput(String outputFileName, PrintStream err) {
+        if (outputFileName.equals("-")) {
+            return System.out;
+        }
+        try {
+            return new PrintStream(new FileOutputStream(outputFileName));
+        } catch (FileNotFoundException e) {
+            err.println("Cannot open output file.");
+            e.printStackTrace(err);
+            return null;
+        }
+    }
+
+    /**
+     * --run 不带 -l：读入二进制 o0 并执行
+     */
+    private static int runModule(Namespace result, String inputFileName, String outputFileName, PrintStream err) {
+        Module module;
+        try {
+            if (inputFileName.equals("-")) {
+                module = Module.read(System.in);
+            } else {
+                try (var input = Files.newInputStream(Path.of(inputFileName))) {
+                    module = Module.read(input);
+                }
+            }
+        } catch (IOException e) {
+            err.println("Cannot load o0 module.");
+            e.printStackTrace(err);
+            return 2;
+        }
+        var output = openOutput(outputFileName, err);
+        if (output == null) {
+            return 2;
+        }
+        try {
+            return run(module, result, output, err);
+        } finally {
+            if (output != System.out) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * 用 Navm 执行模块，程序的输入是标准输入
+     *
+     * 按 --jit 把热的函数编译成 JVM 字节码；按 --profile、--profile-json 统计执行情况，
+     * 程序结束（包括出错）后输出报告
+     */
+    private static int run(Module module, Namespace result, PrintStream output, PrintStream err) {
+        // 程序的输出可能很多，不要每次换行都刷新
+        var buffered = new PrintStream(new BufferedOutputStream(output, 1 << 16), false);
+        var vm = new Navm(module, System.in, buffered, Navm.DEFAULT_MAX_DEPTH, result.getBoolean("jit"));
+        var profileJson = result.getString("profileJson");
+        Profile profile = null;
+        if (result.getBoolean("profile") || profileJson != null) {
+            profile = new Profile(module);
+            vm.setProfile(profile);
+        }
+        int status;
+        try {
+            vm.run();
+            status = 0;
+        } catch (VmError e) {
+            err.println("Runtime error: " + e.getMessage());
+            status = 2;
+        } finally {
+            buffered.flush();
+        }
+        if (profile != null && result.getBoolean("profile")) {
+            profile.writeText(err);
+        }
+        if (profileJson != null && !writeProfile(profile, profileJson, err)) {
+            status = 2;
+        }
+        return status;
+    }
+
+    /**
+     * 把 profile 的 JSON 写到文件，- 是标准错误
+     */
+    private static boolean writeProfile(Profile profile, String fileName, PrintStream err) {
+        if (fileName.equals("-")) {
+            profile.writeJson(err);
+            return true;
+        }
+        try (var out = new PrintStream(new FileOutputStream(fileName))) {
+            profile.writeJson(out);
+            return true;
+        } catch (FileNotFoundException e) {
+            err.println("Cannot write profile.");
+            e.printStackTrace(err);
+            return false;
+        }
+    }
+
+    private static int compile(Namespace result, StringIter iter, PrintStream output, PrintStream err) {
+
         var tokenizer = tokenize(iter);
         
-        
-        InputStream input2;
+        // 只做一遍词法分析，Static 和 Analyser 共用同一份 token
+        TokenStream tokens;
         try {
-			input2 = new FileInputStream(inputFileName);
-		} catch (FileNotFoundException e1) {
-			e1.printStackTrace();
-            System.exit(2);
-            return;
-		}
-        
-        Scanner scanner2;
-        scanner2 = new Scanner(input2);
-        var iter2 = new StringIter(scanner2);
-        var tokenizer2 = tokenize(iter2);
+            tokens = tokenizer.tokenizeAll();
+        } catch (TokenizeError e) {
+            e.printStackTrace(err);
+            err.println(e);
+            return 2;
+        }
 
         /*Static statics = new Static(tokenizer);
         HashMap<String,Integer> stas = statics.analyse();
@@ -115,69 +295,25 @@ public class App {
         
         if (result.getBoolean("tokenize")) {
             // tokenize
-            try {
-				var tokens = new ArrayList<Token>();
-				while (true) {
-				    var token = tokenizer.nextToken();
-				    if (token.getTokenType().equals(TokenType.EOF)) {
-				        break;
-				    }
-				    tokens.add(token);
-				}
-				for (Token token : tokens) {
-				    output.println(token.toString());
-				}
-			} catch (TokenizeError e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				System.err.println(e);
-                System.exit(2);
-                return;
-			}
+            for (int i = 0; i < tokens.size() - 1; i++) {
+                output.println(tokens.get(i).toString());
+            }
         } else if (result.getBoolean("analyse")) {
             // analyze
         	try {
-				Static statics = new Static(tokenizer);
+				Static statics = new Static(tokens);
 				Pair<HashMap<Integer,String>,List<Pair<String,Integer>>> pair = statics.analyse();
 				HashMap<Integer,String> stas = pair.getKey();
 				List<Pair<String,Integer>> loc = pair.getValue();
-				if(stas.size()>0) {
-					output.println("72 30 3b 3e");
-					output.println("00 00 00 01");
-					output.println();
-					output.println(hex32(stas.size()+1));
-					output.println();
-					output.println();
-				}
-				int func_num=0;
-				for(int i=0;i<stas.size();i++)
-				{
-				    String name = stas.get(i);
-				    if(name.equals("0"))
-				    {
-				    	output.println("00");
-				    	output.println("00 00 00 08");
-				    	output.println("00 00 00 00 00 00 00 00");
-				    }
-				    else
-				    {
-				    	output.println("01");
-				    	output.println(hex32(name.length()));
-				    	for(int j=0;j<name.length();j++)
-				    		output.print("'"+name.charAt(j)+"' ");
-				    	if(!kufunction.contains(name))
-				    		func_num++;
-				    	output.println();
-				    }
-				    output.println();
-				}
-				output.println("01");
-		    	output.println("00 00 00 06");
-		    	output.println("'_' 's' 't' 'a' 'r' 't'");
-		    	output.println();
-		    	output.println(hex32(func_num+1));
-		    	output.println();
-		    	output.println();
+				ModuleEmitter program = null;
+				Emitter emitter;
+				if (result.getBoolean("run"))
+					emitter = program = new ModuleEmitter();
+				else if (result.getString("emit").equals("binary"))
+					emitter = new BinaryEmitter(output);
+				else
+					emitter = new TextEmitter(output);
+				emitter.begin(stas);
 				/*for(int i=0;i<stas.size();i++)
 				{
 					output.print("static: ");
@@ -195,34 +331,66 @@ public class App {
 				output.println("static: 5F 73 74 61 72 74 (`_start`)");
 				output.println();
 				output.println();*/
-				var analyzer = new Analyser(tokenizer2,stas,output,loc);
-				List<Instruction> instructions;
-				instructions = analyzer.analyse();
-				for (Instruction instruction : instructions) {
-				    output.println(instruction.toString());
-				}
+				var analyzer = new Analyser(tokens,stas,emitter,loc);
+				analyzer.setParallelism(result.getInt("jobs"));
+				analyzer.setOptimization(result.getInt("optimization"));
+				if (result.getString("cacheDir") != null)
+					analyzer.setCache(new FunctionCache(Path.of(result.getString("cacheDir"))));
+				analyzer.analyse();
+				emitter.finish();
+				if (program != null)
+					return run(program.getModule(), result, output, err);
+			} catch (IOException e) {
+				err.println("Cannot write output file.");
+				e.printStackTrace(err);
+				return 2;
 			} catch (CompileError e) {
 				// TODO Auto-generated catch block
-				e.printStackTrace();
-				System.err.println(e);
-                System.exit(2);
-                return;
+				e.printStackTrace(err);
+				err.println(e);
+                return 2;
 			}
         } 
         else {
-            System.err.println("Please specify either '--analyse' or '--tokenize'.");
-            System.exit(2);
+            err.println("Please specify either '--analyse' or '--tokenize'.");
+            return 2;
         }
+        return 0;
     }
 
-    private static ArgumentParser buildArgparse() {
+    static ArgumentParser buildArgparse() {
         var builder = ArgumentParsers.newFor("c0-java");
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
+        parser.addArgument("--emit").help("Output format of --analyse").choices("text", "binary")
+                .setDefault("text").dest("emit").action(Arguments.store());
+        parser.addArgument("--run").help("Run the program instead of writing it out (with -l compile the source first, otherwise the input is a binary o0 module)")
+                .dest("run").action(Arguments.storeTrue());
+        parser.addArgument("--jit").help("With --run, compile frequently called functions and hot loops to JVM bytecode")
+                .dest("jit").action(Arguments.storeTrue());
+        parser.addArgument("--profile").help("With --run, print instruction, function and loop counts to stderr when the program exits")
+                .dest("profile").action(Arguments.storeTrue());
+        parser.addArgument("--profile-json").metavar("FILE").help("With --run, write the profile as JSON to this file (- for stderr)")
+                .dest("profileJson").action(Arguments.store());
+        parser.addArgument("-j", "--jobs").help("Analyse function bodies on this many threads")
+                .type(Integer.class).setDefault(1).dest("jobs").action(Arguments.store());
+        parser.addArgument("-O").help("Optimization level: 0 emits code as written, 1 folds constants and runs the peephole pass")
+                .type(Integer.class).choices(0, 1).setDefault(1).dest("optimization").action(Arguments.store());
+        parser.addArgument("--cache-dir").help("Reuse unchanged functions from this directory")
+                .dest("cacheDir").action(Arguments.store());
+        parser.addArgument("-o", "--output").help("Set the output file").dest("output")
+                .action(Arguments.store());
+        parser.addArgument("--out-dir").metavar("DIR").help("Compile every input file into this directory")
+                .dest("outDir").action(Arguments.store());
+        parser.addArgument("file").nargs("*").dest("input").action(Arguments.store())
+                .help("Input files (with --out-dir also directories and globs)");
+        parser.addArgument("--server").metavar("SOCKET")
+                .help("Run as a compile server on this Unix domain socket (- for stdin/stdout)")
+                .dest("server").action(Arguments.store());
+        parser.addArgument("--workers").help("Number of files compiled at once with --out-dir or --server")
+                .type(Integer.class).setDefault(Runtime.getRuntime().availableProcessors()).dest("workers")
                 .action(Arguments.store());
-        parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
 
@@ -230,63 +398,4 @@ public class App {
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
     }
-    
-    /**
-     * 8字节16进制数
-     */
-    private static String hex32(Integer x) {
-    	String hex = Integer.toHexString(x);
-		for(int z=hex.length();z<8;)
-		{
-			hex='0'+hex;
-			z=hex.length();
-		}
-		if(x<0)
-			hex=hex.substring(8);
-		int q=0;
-		for(int z=0;z<8;z++)
-		{
-			q+=1;
-			if(z%2==1)
-			{
-				hex=hex.substring(0,q)+' '+hex.substring(q);
-				q+=1;
-			}
-		}
-		return hex;
-    }
-    
-    /**
-     * 16字节16进制数
-     */
-    private static String hex64(Integer x) {
-    	String hex = Integer.toHexString(x);
-		for(int z=hex.length();z<16;)
-		{
-			hex='0'+hex;
-			z=hex.length();
-		}
-		int q=0;
-		for(int z=0;z<16;z++)
-		{
-			q+=1;
-			if(z%2==1)
-			{
-				hex=hex.substring(0,q)+' '+hex.substring(q);
-				q+=1;
-			}
-		}
-		return hex;
-    }
-    
-    private static void init() {
-		kufunction.add("getint");
-		kufunction.add("getdouble");
-		kufunction.add("getchar");
-		kufunction.add("putint");
-		kufunction.add("putdouble");
-		kufunction.add("putchar");
-		kufunction.add("putstr");
-		kufunction.add("putln");
-	}
 }
@@ -0,0 +1,179 @@
+package c0;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * 批量编译：一个 JVM 里编译很多文件，输出到同一个目录
+ *
+ * 每个文件是一个独立的任务，放进 ForkJoinPool 里由空闲的线程窃取执行，
+ * 大文件和小文件混在一起时各个线程也能一直有活干。
+ * 全部完成后按输入顺序打印每个文件的用时和错误，以及总的吞吐量。
+ */
+public class Batch {
+    private int workers;
+
+    /**
+     * @param workers 同时编译的文件数
+     */
+    public Batch(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * 展开输入：目录换成里面所有的 .c0 文件，带 * ? [ { 的参数当作通配符
+     *
+     * @return 输入文件到它在输出目录里的相对路径（不含扩展名）
+     * @throws IOException 读不了目录，或者两个输入对应同一个输出时抛出
+     */
+    static Map<Path, Path> expand(List<String> inputs) throws IOException {
+        Map<Path, Path> files = new LinkedHashMap<>();
+        // 反过来：输出的相对路径 -> 输入文件，用来检查两个输入是否对应同一个输出
+        Map<Path, Path> outputs = new HashMap<>();
+        for (String input : inputs) {
+            var path = Path.of(input);
+            if (Files.isDirectory(path)) {
+                for (var file : walk(path, "glob:**.c0")) {
+                    add(files, outputs, file, path.relativize(file));
+                }
+            } else if (!Files.exists(path) && isGlob(input)) {
+                var base = globBase(input);
+                var pattern = "glob:" + input.replace('\\', '/');
+                var found = walk(base, pattern);
+                if (found.isEmpty()) {
+                    throw new IOException("No input file matches " + input);
+                }
+                for (var file : found) {
+                    add(files, outputs, file, base.relativize(file));
+                }
+            } else {
+                add(files, outputs, path, path.getFileName());
+            }
+        }
+        return files;
+    }
+
+    private static void add(Map<Path, Path> files, Map<Path, Path> outputs, Path file, Path relative)
+            throws IOException {
+        // 同一个文件出现多次时用第一次的输出
+        if (files.containsKey(file)) {
+            return;
+        }
+        var name = relative.getFileName().toString();
+        if (name.endsWith(".c0")) {
+            relative = relative.resolveSibling(name.substring(0, name.length() - 3));
+        }
+        var other = outputs.putIfAbsent(relative, file);
+        if (other != null) {
+            throw new IOException(other + " and " + file + " would write the same output file");
+        }
+        files.put(file, relative);
+    }
+
+    private static List<Path> walk(Path base, String pattern) throws IOException {
+        var matcher = FileSystems.getDefault().getPathMatcher(pattern);
+        try (Stream<Path> stream = Files.walk(base)) {
+            // 去掉开头的 ./ 再和通配符比较
+            return stream.filter(Files::isRegularFile)
+                    .map(Path::normalize)
+                    .filter(matcher::matches)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isGlob(String input) {
+        return input.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    /**
+     * 通配符前面不含通配字符的目录
+     */
+    private static Path globBase(String input) {
+        var base = Path.of(".");
+        var path = Path.of(input);
+        if (path.isAbsolute()) {
+            base = path.getRoot();
+        }
+        for (var part : path) {
+            if (isGlob(part.toString())) {
+                break;
+            }
+            base = base.resolve(part);
+        }
+        return base.normalize();
+    }
+
+    /**
+     * 编译所有文件，把汇总写到 summary
+     *
+     * @param args   命令行参数，输入输出会换成每个文件自己的
+     * @param files  expand 的结果
+     * @param outDir 输出目录
+     * @return 退出码，有文件失败时是 2
+     */
+    public int run(Namespace args, Map<Path, Path> files, Path outDir, PrintStream summary) {
+        String extension;
+        if (args.getBoolean("tokenize")) {
+            extension = ".tokens";
+        } else if (args.getString("emit").equals("binary")) {
+            extension = ".o0";
+        } else {
+            extension = ".txt";
+        }
+        List<Path> inputs = new ArrayList<>(files.keySet());
+        List<CompileJob> jobs = new ArrayList<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (var input : inputs) {
+            var output = outDir.resolve(files.get(input).toString() + extension);
+            var job = new CompileJob(App.withFiles(args, input.toString(), output.toString()));
+            jobs.add(job);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                try {
+                    Files.createDirectories(output.getParent());
+                } catch (IOException e) {
+                    // 交给 compile 报 Cannot open output file.
+                }
+                job.run();
+            }));
+        }
+
+        var pool = new ForkJoinPool(workers);
+        long start = System.nanoTime();
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int failed = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            var job = jobs.get(i);
+            if (job.getStatus() == 0) {
+                summary.printf("%10.2f ms  ok     %s%n", job.getNanos() / 1e6, inputs.get(i));
+            } else {
+                failed++;
+                summary.printf("%10.2f ms  error  %s: %s%n", job.getNanos() / 1e6, inputs.get(i), job.getMessage());
+            }
+        }
+        double seconds = elapsed / 1e9;
+        summary.printf("%d files, %d failed, %.3f s, %.1f files/s%n", inputs.size(), failed, seconds,
+                seconds > 0 ? inputs.size() / seconds : 0.0);
+        return failed == 0 ? 0 : 2;
+    }
+}
@@ -0,0 +1,84 @@
+package c0;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * 批量编译和编译服务里的一个任务
+ *
+ * 每个任务有自己的 Static 和 Analyser，错误信息收集起来而不是直接打印，
+ * 编译器自己抛出的异常和栈溢出也只让这一个任务失败。
+ */
+final class CompileJob {
+    private Namespace args;
+
+    private int status = -1;
+    private String message = "";
+    private long nanos = 0;
+
+    /**
+     * @param args 只有一个输入文件的参数
+     */
+    CompileJob(Namespace args) {
+        this.args = args;
+    }
+
+    void run() {
+        var err = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        try (var errStream = new PrintStream(err, true, StandardCharsets.UTF_8)) {
+            try {
+                status = App.compile(args, errStream);
+            } catch (RuntimeException e) {
+                e.printStackTrace(errStream);
+                errStream.println(e);
+                status = 2;
+            } catch (StackOverflowError e) {
+                // 递归下降分析嵌套很深的表达式时栈不够用，调用栈太长，不打印
+                errStream.println("Input is nested too deeply (stack overflow).");
+                status = 2;
+            }
+        }
+        nanos = System.nanoTime() - start;
+        if (status != 0) {
+            message = lastLine(err.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 退出码，0 表示成功
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * 出错时的最后一行错误信息，成功时是空串
+     */
+    String getMessage() {
+        return message;
+    }
+
+    /**
+     * 编译用的时间
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * 最后一个不是调用栈的行，编译错误时就是 err.println(e) 打印的那一行
+     */
+    private static String lastLine(String text) {
+        var lines = text.split("\\R");
+        for (int i = lines.length - 1; i >= 0; i--) {
+            if (!lines[i].isBlank() && !Character.isWhitespace(lines[i].charAt(0))) {
+                return lines[i];
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,159 @@
+package c0;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * 编译服务：一直运行，省掉每次编译启动 JVM 和预热 JIT 的时间
+ *
+ * 一行一个任务，写法和命令行参数相同（用空白分隔，不支持引号），比如
+ * {@code -l a.c0 -o a.txt --emit binary}。
+ * 每个任务回复一行 {@code 序号 退出码 消息}，序号是任务在这个连接里的行号（从 1 开始），
+ * 消息是出错时的最后一行错误信息。任务并发执行，按完成的顺序回复。
+ */
+public class Server {
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param threads 同时执行的任务数
+     */
+    public Server(int threads) {
+        threads = Math.max(1, threads);
+        // 队列满了由读请求的线程自己执行，读得太快时就慢下来
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * 在 Unix 域套接字上接受连接，每个连接一个线程读任务，直到进程被杀掉
+     *
+     * @throws IOException socket 已经存在但不是套接字（比如写错成了一个普通文件）时不删除，直接抛出
+     */
+    public void listen(Path socket) throws IOException {
+        // 上次没删掉的套接字文件
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            if (!Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                throw new IOException(socket + " already exists and is not a socket");
+            }
+            Files.delete(socket);
+        }
+        // 被 kill 时 finally 不会执行，在退出钩子里删掉套接字文件
+        var cleanup = new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // 删不掉也没关系，下次启动时会先删
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        try (var channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.bind(UnixDomainSocketAddress.of(socket));
+            while (true) {
+                SocketChannel client = channel.accept();
+                var thread = new Thread(() -> {
+                    try (client) {
+                        serve(Channels.newInputStream(client), Channels.newOutputStream(client));
+                    } catch (IOException e) {
+                        // 客户端断开了
+                    }
+                }, "c0-server-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * 从 input 读任务直到结束，等所有任务完成后返回
+     */
+    public void serve(InputStream input, OutputStream output) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        var replies = new PrintStream(output, true, StandardCharsets.UTF_8);
+        var argparse = App.buildArgparse();
+        List<Future<?>> pending = new ArrayList<>();
+        // pending 里每个任务的序号
+        List<Integer> pendingIds = new ArrayList<>();
+        int seq = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.strip();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int id = ++seq;
+            Namespace parsed;
+            try {
+                parsed = argparse.parseArgs(line.split("\\s+"));
+            } catch (ArgumentParserException e) {
+                reply(replies, id, 2, e.getMessage());
+                continue;
+            }
+            List<String> inputs = parsed.getList("input");
+            if (parsed.getString("server") != null || parsed.getString("outDir") != null || inputs.size() != 1
+                    || inputs.get(0).equals("-") || "-".equals(parsed.getString("output"))) {
+                reply(replies, id, 2, "Compile server jobs need one input file and an output file.");
+                continue;
+            }
+            if (parsed.getBoolean("run")) {
+                reply(replies, id, 2, "Compile server jobs cannot use --run.");
+                continue;
+            }
+            var args = App.withFiles(parsed, inputs.get(0), parsed.getString("output"));
+            pending.add(executor.submit(() -> run(replies, id, args)));
+            pendingIds.add(id);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                pending.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // CompileJob 没有接住的 Error，run 没来得及回复
+                reply(replies, pendingIds.get(i), 2, String.valueOf(e.getCause()).lines().findFirst().orElse(""));
+            }
+        }
+    }
+
+    private void run(PrintStream replies, int id, Namespace args) {
+        var job = new CompileJob(args);
+        job.run();
+        reply(replies, id, job.getStatus(), job.getMessage());
+    }
+
+    private static void reply(PrintStream replies, int id, int status, String message) {
+        synchronized (replies) {
+            replies.println(message.isEmpty() ? id + " " + status : id + " " + status + " " + message);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,48 +1,46 @@
 package c0.analyser;
 
+import c0.emitter.Emitter;
 import c0.error.AnalyzeError;
 import c0.error.CompileError;
 import c0.error.ErrorCode;
 import c0.error.ExpectedTokenError;
-import c0.error.TokenizeError;
+import c0.instruction.CodeBuffer;
+import c0.instruction.ConstantFolder;
+import c0.instruction.Function;
 import c0.instruction.Instruction;
+import c0.instruction.Opcode;
+import c0.instruction.Peephole;
 import c0.instruction.Operation;
-import c0.tokenizer.Static;
-import c0.tokenizer.Token;
+import c0.tokenizer.TokenStream;
 import c0.tokenizer.TokenType;
-import c0.tokenizer.Tokenizer;
 import c0.util.Pos;
 
-import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.commons.math3.util.Pair;
 
 public final class Analyser {
 
-    Tokenizer tokenizer;
+    TokenStream tokens;
     ArrayList<Instruction> instructions;
     HashMap<Integer,String> stas;
-    PrintStream output;
+    Emitter emitter;
 
-    /** 当前偷看的 token */
-    Token peekedToken = null;
+    /** 下一个要读取的 token 下标 */
+    int ptr = 0;
 
     /** 符号表 */
-    HashMap<String, SymbolEntry> symbolTable = new HashMap<>();
+    SymbolTable symbolTable = new SymbolTable();
 
-    /** 下一个变量的栈偏移 */
-    int nextOffset = 0;
-    
-    /**符号表层数*/
-    int lay = 0;
     
     /**全局量*/   //static
     HashMap<String,Integer> global = new HashMap<>();
     
     /**局部变量数*/
     List<Pair<String,Integer>> local = new ArrayList<>();
-    int local_num = 0;
     
     /**函数个数*/
     int function_num = 0;
@@ -50,31 +48,54 @@ public final class Analyser {
     /**函数*/
     HashMap<String,Integer> function = new HashMap<>();
     
-    /**操作集*/
-    List<Pair<String,Long>> insructions = new ArrayList<Pair<String,Long>>();
+    /**当前函数的指令*/
+    CodeBuffer code = new CodeBuffer();
     
-    /**参数表*/
-    HashMap<String,Integer> arga = new HashMap<>();
-    int arga_num=0;
+    /**返回值占的 slot 数，参数的下标要加上它*/
+    int retSlots = 0;
     
-    /**局部变量表*/
-    HashMap<String,Integer> loca = new HashMap<>();
+    /**局部变量个数*/
     int loca_num=0;
     
-    /**全局变量表*/
-    HashMap<String,Integer> globa = new HashMap<>();
+    /**外层循环的标号：条件开始（continue）和循环结束（break），最里层在栈顶*/
+    Deque<int[]> loops = new ArrayDeque<>();
+    
+    /**全局变量个数*/
     int globa_num=0;
     
-    /**标准库函数表*/
-    List<String> ku = new ArrayList<>();
+    /**并行分析函数体的线程数，1 表示顺序分析*/
+    int parallelism = 1;
+    
+    /**是否是并行分析里单个函数的 Analyser*/
+    boolean worker = false;
+    
+    /**能调用的函数编号上限（不含）*/
+    int functionLimit = Integer.MAX_VALUE;
+    
+    /**并行分析的结果*/
+    Function result;
+    CompileError error;
+    
+    /**并行分析时本函数赋值过的全局变量，和读取时还没确定是否赋值的全局变量（下标、token）*/
+    Set<Integer> assignedGlobals = new HashSet<>();
+    List<int[]> deferredReads = new ArrayList<>();
+    
+    /**优化级别，0 表示不做常量折叠和窥孔优化*/
+    int optimization = 1;
     
-    /**CallName参数*/
-    int CallNameNum = 0;
+    /**函数缓存，null 表示不用缓存*/
+    FunctionCache cache;
     
-	public Analyser(Tokenizer tokenizer,HashMap<Integer,String> stas,PrintStream output,List<Pair<String,Integer>> local) {
-        this.tokenizer = tokenizer;
+    /**全局变量声明之后第一个 token 的下标*/
+    int prologueEnd = 0;
+    
+    /**结果是否是从缓存里读出来的*/
+    boolean cached = false;
+    
+	public Analyser(TokenStream tokens,HashMap<Integer,String> stas,Emitter emitter,List<Pair<String,Integer>> local) {
+        this.tokens = tokens;
         this.stas = stas;
-        this.output = output;
+        this.emitter = emitter;
         this.local = local;
         this.instructions = new ArrayList<>();
         int size=stas.size(),i=0;
@@ -90,38 +111,63 @@ public final class Analyser {
         }
     }
 
+    /**
+     * 并行分析单个函数用，共享 main 的只读状态
+     */
+    private Analyser(Analyser main, int ordinal) {
+        this.tokens = main.tokens;
+        this.stas = main.stas;
+        this.global = main.global;
+        this.local = main.local;
+        this.function = main.function;
+        this.symbolTable = new SymbolTable(main.symbolTable, ordinal);
+        this.functionLimit = ordinal;
+        this.optimization = main.optimization;
+        this.worker = true;
+    }
+
+    /**
+     * 设置分析函数体的线程数，大于 1 时并行分析
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 设置优化级别，0 表示按源码直接生成指令
+     */
+    public void setOptimization(int optimization) {
+        this.optimization = optimization;
+    }
+
+    /**
+     * 设置函数缓存，没有改动的函数直接用缓存里的指令
+     */
+    public void setCache(FunctionCache cache) {
+        this.cache = cache;
+    }
+
     public List<Instruction> analyse() throws CompileError {
     	analyseProgram();
         return instructions;
     }
 
     /**
-     * 查看下一个 Token
+     * 查看下一个 token 的下标
      * 
      * @return
-     * @throws TokenizeError
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private int peek() {
+        return ptr;
     }
 
     /**
-     * 获取下一个 Token
+     * 获取下一个 token 的下标
      * 
      * @return
-     * @throws TokenizeError
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() {
+        return ptr++;
     }
 
     /**
@@ -129,52 +175,53 @@ public final class Analyser {
      * 
      * @param tt
      * @return
-     * @throws TokenizeError
      */
-    private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+    private boolean check(TokenType tt) {
+        return tokens.type(ptr) == tt;
     }
 
     /**
-     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
+     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回 true
      * 
      * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
-     * @throws TokenizeError
+     * @return 是否匹配
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
-            return next();
+    private boolean nextIf(TokenType tt) {
+        if (check(tt)) {
+            next();
+            return true;
         } else {
-            return null;
+            return false;
         }
     }
 
     /**
-     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
+     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回它的下标，否则抛出异常
      * 
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 的下标
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int expect(TokenType tt) throws CompileError {
+        if (check(tt)) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.get(ptr));
         }
     }
 
     /**
-     * 获取下一个变量的栈偏移
-     * 
-     * @return
+     * token 的值（字符串形式）
+     */
+    private String text(int token) {
+        return tokens.text(token);
+    }
+
+    /**
+     * token 的位置（报错用）
      */
-    private int getNextVariableOffset() {
-        return this.nextOffset++;
+    private Pos pos(int token) {
+        return tokens.startPos(token);
     }
 
     /**
@@ -184,48 +231,16 @@ public final class Analyser {
      * @param type               类型
      * @param isInitialized 是否已赋值
      * @param isConstant    是否是常量
-     * @param layer1        符号表层数
+     * @param storage       存放位置
+     * @param slot          参数、局部变量或全局变量的下标
      * @param curPos        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
-    private void addSymbol(String nameToken,String type, boolean isInitialized, boolean isConstant, int layer, Pos curPos) throws AnalyzeError {
-        if ((this.symbolTable.get(nameToken) != null)&&(this.symbolTable.get(nameToken).layer==layer)) {
+    private void addSymbol(String nameToken,Type type, boolean isInitialized, boolean isConstant, StorageClass storage, int slot, Pos curPos) throws AnalyzeError {
+        if (this.symbolTable.isDeclaredInScope(nameToken)) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
-            this.symbolTable.put(nameToken, new SymbolEntry(type,isConstant, isInitialized, getNextVariableOffset(),layer));
-        }
-    }
-
-    /**
-     * 设置符号为已赋值
-     * 
-     * @param name   符号名称
-     * @param curPos 当前位置（报错用）
-     * @throws AnalyzeError 如果未定义则抛异常
-     */
-    private void declareSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            entry.setInitialized(true);
-        }
-    }
-
-    /**
-     * 获取变量在栈上的偏移
-     * 
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 栈偏移
-     * @throws AnalyzeError
-     */
-    private int getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            return entry.getStackOffset();
+            this.symbolTable.put(nameToken, new SymbolEntry(type,isConstant, isInitialized, storage, slot,this.symbolTable.depth()));
         }
     }
 
@@ -247,37 +262,36 @@ public final class Analyser {
     }
     
     /**
-     * 获取变量类型
+     * 查找标识符 token 对应的符号
+     *
+     * @throws AnalyzeError 如果未定义则抛异常
      */
-    private String getType(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
+    private SymbolEntry lookup(int token) throws AnalyzeError {
+        var entry = this.symbolTable.get(text(token));
         if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
+            throw new AnalyzeError(ErrorCode.NotDeclared, pos(token));
         } else {
-            return entry.type;
+            return entry;
         }
     }
+
+    /**
+     * 把变量的地址压栈，有返回值时参数下标要加上返回值的位置
+     */
+    private void loadAddress(SymbolEntry entry) {
+        int slot = entry.slot;
+        if (entry.storage == StorageClass.ARG) {
+            slot += this.retSlots;
+        }
+        this.code.add(entry.storage.getAddressOpcode(), slot);
+    }
     
     /**
      * 初始化标准库
      */
     private void init() {
-    	this.symbolTable.put("getint", new SymbolEntry("f-int",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("getdouble", new SymbolEntry("f-double",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("getchar", new SymbolEntry("f-int",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("putint", new SymbolEntry("f-void",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("putdouble", new SymbolEntry("f-void",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("putchar", new SymbolEntry("f-void",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("putstr", new SymbolEntry("f-void",true, true, getNextVariableOffset(),lay));
-    	this.symbolTable.put("putln", new SymbolEntry("f-void",true, true, getNextVariableOffset(),lay));
-    	this.ku.add("getint");
-    	this.ku.add("getdouble");
-    	this.ku.add("getchar");
-    	this.ku.add("putint");
-    	this.ku.add("putdouble");
-    	this.ku.add("putchar");
-    	this.ku.add("putstr");
-    	this.ku.add("putln");
+    	for(var builtin : Builtin.values())
+    		this.symbolTable.put(builtin.getName(), new SymbolEntry(builtin.getType(),true, true, StorageClass.FUNCTION, -1,0));
     }
     
     /**
@@ -289,6 +303,7 @@ public final class Analyser {
     	while (check(TokenType.CONST_KW)||check(TokenType.LET_KW)) {
     		analyseDecl_stmt();
     	}
+    	this.prologueEnd = ptr;
     	//找main
     	int mainnum = -1;
     	for(int i=0;i<this.local.size();i++)
@@ -301,50 +316,41 @@ public final class Analyser {
     	}
     	if(mainnum==-1)
     		throw new AnalyzeError(ErrorCode.NoMainFunction,new Pos(0,0));
-    	this.insructions.add(new Pair<String, Long>("1a",(long) 0));
-    	this.insructions.add(new Pair<String, Long>("48",(long) mainnum));
-    	/*output.println("fn ["+stas.size()+"] 0 0 -> 0 {");
-    	//内容
-    	int x=0;
-    	for(Pair<String,Long> ins : this.insructions) {
-    		output.print("    "+x+": "+ins.getKey());
-    		if(ins.getValue()!=-1)
-    			output.println("("+ins.getValue()+")");
-    		else
-    			output.println();
-    		x++;
-    	}
-    	output.println("}");
-    	output.println();*/
-    	output.println(hex32((long) (this.function_num+1)));
-    	output.println("00 00 00 00");
-    	output.println("00 00 00 00");
-    	output.println("00 00 00 00");
-    	output.println(hex32((long) this.insructions.size()));
-    	for(Pair<String,Long> ins : this.insructions) {
-    		output.print("    "+ins.getKey()+" ");
-    		if(ins.getValue()!=-1)
-    			output.println(hex32(ins.getValue()));
-    		else
-    			output.println();
-    	}
-    	output.println();
-    	output.println();
-    	//清空表
-    	this.insructions.clear();
-    	while (check(TokenType.FN_KW)) {
-    		analyseFunction();
-    	}
+    	this.code.add(Opcode.STACKALLOC, 0);
+    	this.code.add(Opcode.CALL, mainnum);
+    	emitter.function(new Function("_start", stas.size(), 0, 0, 0, this.code));
+    	this.code = new CodeBuffer();
+    	if(this.parallelism > 1 || this.cache != null)
+    		analyseFunctions_parallel();
+    	else
+    		while (check(TokenType.FN_KW)) {
+    			analyseFunction();
+    		}
     }
     
     /**
      * 函数
      */
     private void analyseFunction() throws CompileError {
-    	int param_num = 0;
-    	this.lay+=1;
+    	var header = analyseFunction_header();
+    	int ordinal = this.function_num+1;
+    	declareFunction(header, ordinal);
+    	var result = analyseFunction_body(header, ordinal);
+    	//函数个数
+    	this.function_num++;
+    	function.put(text(header.nameToken), this.function_num);
+    	//输出
+    	emitter.function(result);
+    }
+    
+    /**
+     * 函数头：fn 名字(参数) -> 类型，读到函数体的 { 之前
+     */
+    private FunctionHeader analyseFunction_header() throws CompileError {
+    	var header = new FunctionHeader();
+    	header.start = ptr;
     	expect(TokenType.FN_KW);
-    	var nameToken = expect(TokenType.IDENT);
+    	header.nameToken = expect(TokenType.IDENT);
     	expect(TokenType.L_PAREN);
     	if(check(TokenType.CONST_KW)||check(TokenType.IDENT))
     	{
@@ -357,9 +363,9 @@ public final class Analyser {
     		var nameToken1 = expect(TokenType.IDENT);
     		expect(TokenType.COLON);
     		var ty1 = expect(TokenType.ty);
-    		addSymbol(nameToken1.getValue().toString(),ty1.getValue().toString(),true,IsConst,this.lay,nameToken1.getStartPos());
-    		this.arga.put(nameToken1.getValue().toString(), this.arga_num++);
-    		param_num++;
+    		header.paramNames.add(nameToken1);
+    		header.paramTypes.add(Type.of(text(ty1)));
+    		header.paramConst.add(IsConst);
     		while(check(TokenType.COMMA))
         	{
     			expect(TokenType.COMMA);
@@ -373,74 +379,247 @@ public final class Analyser {
         		var nameToken2 = expect(TokenType.IDENT);
         		expect(TokenType.COLON);
         		var ty2 = expect(TokenType.ty);
-        		addSymbol(nameToken2.getValue().toString(),ty2.getValue().toString(),true,IsConst,this.lay,nameToken2.getStartPos());
-        		this.arga.put(nameToken2.getValue().toString(), this.arga_num++);
-        		param_num++;
+        		header.paramNames.add(nameToken2);
+        		header.paramTypes.add(Type.of(text(ty2)));
+        		header.paramConst.add(IsConst);
         	}
     	}
     	expect(TokenType.R_PAREN);
     	expect(TokenType.ARROW);
     	var ty = expect(TokenType.ty);
-    	addSymbol(nameToken.getValue().toString(),"f-"+ty.getValue().toString(),true,false,this.lay-1,nameToken.getStartPos());
-    	analyseBlock_stmt();
-    	//移除局部变量
-    	Iterator<SymbolEntry> it = this.symbolTable.values().iterator(); 
-    	while(it.hasNext()) {  
-    		SymbolEntry ele = it.next(); 
-            if (ele.layer==this.lay) {
-                it.remove();
-            }
-        }
-    	this.lay-=1;
-    	//函数个数
-    	String name = nameToken.getValue().toString();
-    	this.function_num++;
-    	function.put(name, this.function_num);
-    	//输出
-    	this.insructions.add(new Pair<String, Long>("49",(long) -1));
+    	header.retType = Type.of(text(ty));
+    	header.bodyStart = ptr;
+    	return header;
+    }
+    
+    /**
+     * 在全局层声明函数名，ordinal 是它的函数编号（_start 是 0）
+     */
+    private void declareFunction(FunctionHeader header, int ordinal) throws CompileError {
+    	addSymbol(text(header.nameToken),Type.function(header.retType, header.paramTypes),true,false,StorageClass.FUNCTION,ordinal,pos(header.nameToken));
+    }
+    
+    /**
+     * 函数体，从 header.bodyStart 开始
+     */
+    private Function analyseFunction_body(FunctionHeader header, int ordinal) throws CompileError {
+    	int param_num = 0;
+    	//函数名在全局层，参数和局部变量在函数层，退出时恢复被遮住的全局符号
+    	this.symbolTable.enterScope();
+    	for(int i=0;i<header.paramNames.size();i++)
+    	{
+    		int param = header.paramNames.get(i);
+    		addSymbol(text(param),header.paramTypes.get(i),true,header.paramConst.get(i),StorageClass.ARG,param_num,pos(param));
+    		param_num++;
+    	}
     	int type = 1;
-    	if(ty.getValue().toString().equals("void"))
+    	if(header.retType == Type.VOID)
     		type = 0;
-    	/*output.println("fn ["+global.get(name)+"] "+local.get(this.local_num++).getSecond()+" "+param_num+" -> "+type+" {");
-    	//内容
-    	int x=0;
-    	for(Pair<String,Long> ins : this.insructions) {
-    		output.print("    "+x+": "+ins.getKey());
-    		if(type == 1&&ins.getKey().equals("ArgA")) 
-    			output.println("("+(ins.getValue()+1)+")");
-    		else if(ins.getValue()!=-1)
-    			output.println("("+ins.getValue()+")");
-    		else
-    			output.println();
-    		x++;
-    	}
-    	output.println("}");
-    	output.println();*/
-    	output.println(hex32((long) (this.function_num+1)));
-    	output.println(hex32((long) (type)));
-    	output.println(hex32((long) (param_num)));
-    	output.println(hex32((long) (local.get(this.local_num++).getSecond())));
-    	output.println(hex32((long) this.insructions.size()));
-    	for(Pair<String,Long> ins : this.insructions) {
-    		output.print("    "+ins.getKey()+" ");
-    		if(type == 1&&ins.getKey().equals("0b")) 
-    			output.println(hex32(ins.getValue()+1));
-    		else if(ins.getKey().equals("01"))
-    			output.println(hex64(ins.getValue()));
-    		else if(ins.getValue()!=-1)
-    			output.println(hex32(ins.getValue()));
-    		else
-    			output.println();
-    	}
-    	output.println();
-    	output.println();
+    	//有返回值时返回值占 arg 0，参数从 1 开始
+    	this.retSlots = type;
+    	analyseBlock_stmt();
+    	this.symbolTable.exitScope();
+    	this.code.add(Opcode.RET);
+    	this.code.resolveLabels();
+    	if(this.optimization > 0)
+    		Peephole.optimize(this.code);
+    	String name = text(header.nameToken);
+    	var result = new Function(name, global.get(name), type, param_num, local.get(ordinal-1).getSecond(), this.code);
     	//清空表
-    	this.arga.clear();
-    	this.arga_num=0;
-    	this.loca.clear();
     	this.loca_num=0;
-    	this.insructions.clear();
-    	this.CallNameNum++;
+    	this.code = new CodeBuffer();
+    	return result;
+    }
+    
+    /**
+     * 分别分析每个函数（并行或者使用缓存时）
+     *
+     * 先顺序读完所有函数头并声明函数名，再把每个函数体交给线程池（或者从缓存读出），
+     * 最后按源码顺序检查全局变量是否已赋值并输出。
+     * 报告的错误和顺序分析时一样是源码里的第一个。
+     */
+    private void analyseFunctions_parallel() throws CompileError {
+    	List<FunctionHeader> headers = new ArrayList<>();
+    	CompileError headerError = null;
+    	try {
+    		while (check(TokenType.FN_KW)) {
+    			var header = analyseFunction_header();
+    			int ordinal = headers.size()+1;
+    			declareFunction(header, ordinal);
+    			this.function.put(text(header.nameToken), ordinal);
+    			headers.add(header);
+    			if(!skipBlock())
+    				break;
+    			header.end = ptr;
+    		}
+    	} catch (CompileError e) {
+    		headerError = e;
+    	}
+    	if(this.cache != null)
+    		computeCacheKeys(headers);
+    	//只有一个线程时在当前线程里依次分析
+    	var pool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+    	try {
+    		List<ForkJoinTask<Analyser>> tasks = new ArrayList<>();
+    		for(int i=0;i<headers.size();i++) {
+    			var header = headers.get(i);
+    			int ordinal = i+1;
+    			var task = ForkJoinTask.adapt(() -> analyseFunction_worker(header, ordinal));
+    			if(pool != null)
+    				pool.execute(task);
+    			tasks.add(task);
+    		}
+    		Set<Integer> initialized = new HashSet<>();
+    		for(int i=0;i<tasks.size();i++) {
+    			var header = headers.get(i);
+    			var task = tasks.get(i);
+    			var worker = pool != null ? task.join() : task.invoke();
+    			for(int[] read : worker.deferredReads)
+    				if(!initialized.contains(read[0]))
+    					throw new AnalyzeError(ErrorCode.NotInitialized,pos(read[1]));
+    			if(worker.error != null)
+    				throw worker.error;
+    			initialized.addAll(worker.assignedGlobals);
+    			if(header.cacheKey != null && !worker.cached)
+    				this.cache.store(header.cacheKey, toCacheEntry(worker, header));
+    			this.function_num++;
+    			emitter.function(worker.result);
+    		}
+    	} finally {
+    		if(pool != null)
+    			pool.shutdownNow();
+    	}
+    	if(headerError != null)
+    		throw headerError;
+    }
+    
+    /**
+     * 分析一个函数体，缓存里有时直接读出来
+     */
+    private Analyser analyseFunction_worker(FunctionHeader header, int ordinal) {
+    	var worker = new Analyser(this, ordinal);
+    	if(header.cacheKey != null) {
+    		var entry = this.cache.load(header.cacheKey);
+    		if(entry != null) {
+    			worker.result = entry.function;
+    			worker.assignedGlobals.addAll(entry.assignedGlobals);
+    			for(int[] read : entry.deferredReads)
+    				worker.deferredReads.add(new int[] {read[0], header.start+read[1]});
+    			worker.cached = true;
+    			return worker;
+    		}
+    	}
+    	worker.ptr = header.bodyStart;
+    	try {
+    		worker.result = worker.analyseFunction_body(header, ordinal);
+    	} catch (CompileError e) {
+    		worker.error = e;
+    	}
+    	return worker;
+    }
+    
+    /**
+     * 缓存的内容，token 下标改成相对函数开头的偏移
+     */
+    private FunctionCache.Entry toCacheEntry(Analyser worker, FunctionHeader header) {
+    	var entry = new FunctionCache.Entry();
+    	entry.function = worker.result;
+    	entry.assignedGlobals.addAll(worker.assignedGlobals);
+    	for(int[] read : worker.deferredReads)
+    		entry.deferredReads.add(new int[] {read[0], read[1]-header.start});
+    	return entry;
+    }
+    
+    /**
+     * 计算每个函数的缓存键
+     *
+     * 函数体的分析结果只取决于：全局变量声明、前面的函数头（决定能调用哪些函数和它们的编号）、
+     * 函数自己的 token、Static 给出的局部变量个数，以及用到的名字和字符串在全局表里的下标。
+     * 块没有结束的函数不缓存。
+     */
+    private void computeCacheKeys(List<FunctionHeader> headers) {
+    	byte[] context = new FunctionCache.Hasher().putTokens(tokens, 0, this.prologueEnd).digest();
+    	for(int i=0;i<headers.size();i++) {
+    		var header = headers.get(i);
+    		int ordinal = i+1;
+    		if(header.end > header.start) {
+    			var hasher = new FunctionCache.Hasher().putBytes(context).putInt(ordinal).putInt(this.optimization)
+    					.putTokens(tokens, header.start, header.end)
+    					.putInt(ordinal-1 < local.size() ? local.get(ordinal-1).getSecond() : -1);
+    			for(int t=header.start;t<header.end;t++) {
+    				var type = tokens.type(t);
+    				if(type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+    					var index = this.global.get(text(t));
+    					hasher.putInt(index == null ? -1 : index);
+    				}
+    			}
+    			header.cacheKey = hasher.hexDigest();
+    		}
+    		context = new FunctionCache.Hasher().putBytes(context).putTokens(tokens, header.start, header.bodyStart).digest();
+    	}
+    }
+    
+    /**
+     * 跳过一个 {} 块，下一个 token 不是 { 或者块没有结束时返回 false
+     */
+    private boolean skipBlock() {
+    	if(!check(TokenType.L_BRACE))
+    		return false;
+    	int depth = 0;
+    	do {
+    		if(check(TokenType.L_BRACE))
+    			depth++;
+    		else if(check(TokenType.R_BRACE))
+    			depth--;
+    		else if(check(TokenType.EOF))
+    			return false;
+    		next();
+    	} while(depth > 0);
+    	return true;
+    }
+    
+    /**
+     * 函数调用的目标，只能调用前面已经分析完的函数
+     */
+    private Integer calleeIndex(String name) {
+    	var index = this.function.get(name);
+    	if(index == null || index >= this.functionLimit)
+    		return null;
+    	return index;
+    }
+    
+    /**
+     * 读取变量前检查是否已赋值
+     *
+     * 并行分析时全局变量可能在前面的函数里赋值，先记下来，合并结果时再检查
+     */
+    private void checkInitialized(SymbolEntry entry, int token) throws AnalyzeError {
+    	if(entry.isInitialized)
+    		return;
+    	if(this.worker && entry.storage == StorageClass.GLOBAL) {
+    		if(!this.assignedGlobals.contains(entry.slot))
+    			this.deferredReads.add(new int[] {entry.slot, token});
+    		return;
+    	}
+    	throw new AnalyzeError(ErrorCode.NotInitialized,pos(token));
+    }
+    
+    /**
+     * 给变量赋值，并行分析时不修改共享的全局符号
+     */
+    private void markInitialized(SymbolEntry entry) {
+    	if(this.worker && entry.storage == StorageClass.GLOBAL)
+    		this.assignedGlobals.add(entry.slot);
+    	else
+    		entry.setInitialized(true);
+    }
+    
+    /**
+     * 添加一条运算指令，操作数都是常量时直接换成结果
+     */
+    private void addOperation(Opcode op) {
+    	if(this.optimization == 0 || !ConstantFolder.fold(this.code, op))
+    		this.code.add(op);
     }
     
     /**
@@ -453,6 +632,8 @@ public final class Analyser {
     		analyseWhile_stmt();
     	else if(check(TokenType.RETURN_KW))
     		analyseReturn_stmt();
+    	else if(check(TokenType.BREAK_KW)||check(TokenType.CONTINUE_KW))
+    		analyseBreak_stmt();
     	else if(check(TokenType.SEMICOLON))
     		analyseEmpty_stmt();
     	else if(check(TokenType.L_BRACE))
@@ -468,31 +649,25 @@ public final class Analyser {
     /**
      * 表达式（-1级）（=）
      */
-    private String analyseAssign_expr() throws CompileError {
-    	String str1 = null;
-    	if(check(TokenType.IDENT)&&(getType(peek().getValue().toString(),peek().getStartPos()).charAt(0)!='f'))
+    private Type analyseAssign_expr() throws CompileError {
+    	Type str1 = null;
+    	SymbolEntry entry = check(TokenType.IDENT) ? lookup(peek()) : null;
+    	if(entry!=null&&!entry.type.isFunction())
 		{
-			Token ident = next();
-			str1 = this.symbolTable.get(ident.getValue().toString()).type;
+			int ident = next();
+			str1 = entry.type;
 			if(check(TokenType.ASSIGN))
 			{
-				if(this.symbolTable.get(ident.getValue().toString()).isConstant)
-					throw new AnalyzeError(ErrorCode.AssignToConstant,ident.getStartPos());
-				if(this.arga.get(ident.getValue().toString())!=null)
-					this.insructions.add(new Pair<String, Long>("0b",this.arga.get(ident.getValue().toString()).longValue()));
-				else if(this.loca.get(ident.getValue().toString())!=null)
-					this.insructions.add(new Pair<String, Long>("0a",this.loca.get(ident.getValue().toString()).longValue()));
-				else if(this.globa.get(ident.getValue().toString())!=null)
-					this.insructions.add(new Pair<String, Long>("0c",this.globa.get(ident.getValue().toString()).longValue()));
-				else
-					throw new AnalyzeError(ErrorCode.NotDeclared,ident.getStartPos());
+				if(entry.isConstant)
+					throw new AnalyzeError(ErrorCode.AssignToConstant,pos(ident));
+				loadAddress(entry);
 				var ass = expect(TokenType.ASSIGN);
-				String str2 = analyseExpr();
-				if(!str1.equals(str2))
-		    		throw new AnalyzeError(ErrorCode.TypeMismatch,ass.getStartPos());
-				str1 = "void";
-				this.insructions.add(new Pair<String, Long>("17",(long) -1));
-				declareSymbol(ident.getValue().toString(), ident.getStartPos());
+				Type str2 = analyseExpr();
+				if(str1 != str2)
+		    		throw new AnalyzeError(ErrorCode.TypeMismatch,pos(ass));
+				str1 = Type.VOID;
+				this.code.add(Opcode.STORE64);
+				markInitialized(entry);
 			}
 			else
 				str1 = analyseExpr(ident);
@@ -505,67 +680,67 @@ public final class Analyser {
     /**
      * 表达式（-1级）（>、<、==、!=、<=、>=）
      */
-    private String analyseCompare_expr() throws CompileError {
-    	String str1 = analyseExpr();
+    private Type analyseCompare_expr() throws CompileError {
+    	Type str1 = analyseExpr();
     	if(check(TokenType.LE)||check(TokenType.LT)||check(TokenType.GE)||check(TokenType.GT)||check(TokenType.EQ)||check(TokenType.NEQ))
 		{
 			var compareSign = next();
-			String str2 = analyseExpr();
-			if(!str1.equals(str2))
-				throw new AnalyzeError(ErrorCode.TypeMismatch,compareSign.getStartPos());
+			Type str2 = analyseExpr();
+			if(str1 != str2)
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(compareSign));
 			else
 			{
-				if(compareSign.getValue().toString().equals(">"))
+				if(tokens.type(compareSign)==TokenType.GT)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
-					this.insructions.add(new Pair<String, Long>("3a",(long) -1));
+						addOperation(Opcode.CMP_F);
+					addOperation(Opcode.SET_GT);
 				}
-				else if(compareSign.getValue().toString().equals("<"))
+				else if(tokens.type(compareSign)==TokenType.LT)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
-					this.insructions.add(new Pair<String, Long>("39",(long) -1));
+						addOperation(Opcode.CMP_F);
+					addOperation(Opcode.SET_LT);
 				}
-				else if(compareSign.getValue().toString().equals(">="))
+				else if(tokens.type(compareSign)==TokenType.GE)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
-					this.insructions.add(new Pair<String, Long>("39",(long) -1));
-					this.insructions.add(new Pair<String, Long>("2e",(long) -1));
+						addOperation(Opcode.CMP_F);
+					addOperation(Opcode.SET_LT);
+					addOperation(Opcode.NOT);
 				}
-				else if(compareSign.getValue().toString().equals("<="))
+				else if(tokens.type(compareSign)==TokenType.LE)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
-					this.insructions.add(new Pair<String, Long>("3a",(long) -1));
-					this.insructions.add(new Pair<String, Long>("2e",(long) -1));
+						addOperation(Opcode.CMP_F);
+					addOperation(Opcode.SET_GT);
+					addOperation(Opcode.NOT);
 				}
-				else if(compareSign.getValue().toString().equals("!="))
+				else if(tokens.type(compareSign)==TokenType.NEQ)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
+						addOperation(Opcode.CMP_F);
 				}
 				else
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("30",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.CMP_I);
 					else
-						this.insructions.add(new Pair<String, Long>("32",(long) -1));
-					this.insructions.add(new Pair<String, Long>("2e",(long) -1));
+						addOperation(Opcode.CMP_F);
+					addOperation(Opcode.NOT);
 				}
 			}
-			str1 = "boolean";
+			str1 = Type.BOOLEAN;
 		}
     	return str1;
     }
@@ -573,62 +748,62 @@ public final class Analyser {
     /**
      * 表达式（0级）（+、-）
      */
-    private String analyseExpr() throws CompileError {
-    	String str1 = analyseExpr1();
-    	String str2 = str1;
-    	var PlusOrMinus = new Token(TokenType.None,null,new Pos(0,0),new Pos(0,0));
+    private Type analyseExpr() throws CompileError {
+    	Type str1 = analyseExpr1();
+    	Type str2 = str1;
+    	int PlusOrMinus;
     	while(check(TokenType.PLUS)||check(TokenType.MINUS))
 		{
 			PlusOrMinus = next();
 			str2 = analyseExpr1();
-			if(!str1.equals(str2))
-				throw new AnalyzeError(ErrorCode.TypeMismatch,PlusOrMinus.getStartPos());
+			if(str1 != str2)
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(PlusOrMinus));
 			else
 			{
-				if(PlusOrMinus.getValue().toString().equals("+"))
+				if(tokens.type(PlusOrMinus)==TokenType.PLUS)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("20",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.ADD_I);
 					else
-						this.insructions.add(new Pair<String, Long>("24",(long) -1));
+						addOperation(Opcode.ADD_F);
 				}
 				else
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("21",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.SUB_I);
 					else
-						this.insructions.add(new Pair<String, Long>("25",(long) -1));
+						addOperation(Opcode.SUB_F);
 				}
 			}
 		}
     	return str1;
     }
     
-    private String analyseExpr(Token ident) throws CompileError{
-    	String str1 = analyseExpr1(ident);
-    	String str2 = str1;
-    	var PlusOrMinus = new Token(TokenType.None,null,new Pos(0,0),new Pos(0,0));
+    private Type analyseExpr(int ident) throws CompileError{
+    	Type str1 = analyseExpr1(ident);
+    	Type str2 = str1;
+    	int PlusOrMinus;
     	while(check(TokenType.PLUS)||check(TokenType.MINUS))
 		{
 			PlusOrMinus = next();
 			str2 = analyseExpr1();
-			if(!str1.equals(str2))
-				throw new AnalyzeError(ErrorCode.TypeMismatch,PlusOrMinus.getStartPos());
+			if(str1 != str2)
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(PlusOrMinus));
 			else
 			{
-				if(PlusOrMinus.getValue().toString().equals("+"))
+				if(tokens.type(PlusOrMinus)==TokenType.PLUS)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("20",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.ADD_I);
 					else
-						this.insructions.add(new Pair<String, Long>("24",(long) -1));
+						addOperation(Opcode.ADD_F);
 				}
 				else
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("21",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.SUB_I);
 					else
-						this.insructions.add(new Pair<String, Long>("25",(long) -1));
+						addOperation(Opcode.SUB_F);
 				}
 			}
 		}
@@ -638,62 +813,62 @@ public final class Analyser {
     /**
      * 表达式（1级）（*、/）
      */
-    private String analyseExpr1() throws CompileError {
-    	String str1 = analyseExpr2();
-    	String str2 = str1;
-    	var MulOrDiv = new Token(TokenType.None,null,new Pos(0,0),new Pos(0,0));
+    private Type analyseExpr1() throws CompileError {
+    	Type str1 = analyseExpr2();
+    	Type str2 = str1;
+    	int MulOrDiv;
     	while(check(TokenType.MUL)||check(TokenType.DIV))
 		{
 			MulOrDiv = next();
 			str2 = analyseExpr2();
-			if(!str1.equals(str2))
-				throw new AnalyzeError(ErrorCode.TypeMismatch,MulOrDiv.getStartPos());
+			if(str1 != str2)
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(MulOrDiv));
 			else
 			{
-				if(MulOrDiv.getValue().toString().equals("*"))
+				if(tokens.type(MulOrDiv)==TokenType.MUL)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("22",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.MUL_I);
 					else
-						this.insructions.add(new Pair<String, Long>("26",(long) -1));
+						addOperation(Opcode.MUL_F);
 				}
 				else
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("23",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.DIV_I);
 					else
-						this.insructions.add(new Pair<String, Long>("27",(long) -1));
+						addOperation(Opcode.DIV_F);
 				}
 			}
 		}
 		return str1;
     }
     
-    private String analyseExpr1(Token ident) throws CompileError {
-    	String str1 = analyseExpr2(ident);
-    	String str2 = str1;
-    	var MulOrDiv = new Token(TokenType.None,null,new Pos(0,0),new Pos(0,0));
+    private Type analyseExpr1(int ident) throws CompileError {
+    	Type str1 = analyseExpr2(ident);
+    	Type str2 = str1;
+    	int MulOrDiv;
     	while(check(TokenType.MUL)||check(TokenType.DIV))
 		{
 			MulOrDiv = next();
 			str2=analyseExpr2();
-			if(!str1.equals(str2))
-				throw new AnalyzeError(ErrorCode.TypeMismatch,MulOrDiv.getStartPos());
+			if(str1 != str2)
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(MulOrDiv));
 			else
 			{
-				if(MulOrDiv.getValue().toString().equals("*"))
+				if(tokens.type(MulOrDiv)==TokenType.MUL)
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("22",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.MUL_I);
 					else
-						this.insructions.add(new Pair<String, Long>("26",(long) -1));
+						addOperation(Opcode.MUL_F);
 				}
 				else
 				{
-					if(str1.equals("int"))
-						this.insructions.add(new Pair<String, Long>("23",(long) -1));
+					if(str1 == Type.INT)
+						addOperation(Opcode.DIV_I);
 					else
-						this.insructions.add(new Pair<String, Long>("27",(long) -1));
+						addOperation(Opcode.DIV_F);
 				}
 			}
 		}
@@ -703,44 +878,34 @@ public final class Analyser {
     /**
      * 表达式（2级）（as）
      */
-    private String analyseExpr2() throws CompileError {
-    	String str = analyseExpr3();
-    	try {
-			if(check(TokenType.AS_KW))
-			{
-				next();
-				var ty = next();
-				String ty2 = ty.getValue().toString();
-				if(str.equals("int")&&ty2.equals("double"))
-					this.insructions.add(new Pair<String, Long>("36",(long) -1));
-				else if(ty2.equals("int")&&str.equals("double"))
-					this.insructions.add(new Pair<String, Long>("37",(long) -1));
-				return ty2;
-			}
-		} catch (TokenizeError e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+    private Type analyseExpr2() throws CompileError {
+    	Type str = analyseExpr3();
+		if(check(TokenType.AS_KW))
+		{
+			next();
+			var ty = next();
+			Type ty2 = Type.of(text(ty));
+			if(str == Type.INT&&ty2 == Type.DOUBLE)
+				addOperation(Opcode.ITOF);
+			else if(ty2 == Type.INT&&str == Type.DOUBLE)
+				addOperation(Opcode.FTOI);
+			return ty2;
 		}
     	return str;
     }
     
-    private String analyseExpr2(Token ident) throws CompileError {
-    	String str = analyseExpr3(ident);
-    	try {
-			if(check(TokenType.AS_KW))
-			{
-				next();
-				var ty = next();
-				String ty2 = ty.getValue().toString();
-				if(str.equals("int")&&ty2.equals("double"))
-					this.insructions.add(new Pair<String, Long>("36",(long) -1));
-				else if(ty2.equals("int")&&str.equals("double"))
-					this.insructions.add(new Pair<String, Long>("37",(long) -1));
-				return ty2;
-			}
-		} catch (TokenizeError e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+    private Type analyseExpr2(int ident) throws CompileError {
+    	Type str = analyseExpr3(ident);
+		if(check(TokenType.AS_KW))
+		{
+			next();
+			var ty = next();
+			Type ty2 = Type.of(text(ty));
+			if(str == Type.INT&&ty2 == Type.DOUBLE)
+				addOperation(Opcode.ITOF);
+			else if(ty2 == Type.INT&&str == Type.DOUBLE)
+				addOperation(Opcode.FTOI);
+			return ty2;
 		}
     	return str;
     }
@@ -748,100 +913,102 @@ public final class Analyser {
     /**
      * 表达式（3级）（括号、函数、负号、Unit、Double、String、IDENT）
      */
-    private String analyseExpr3() throws CompileError {
+    private Type analyseExpr3() throws CompileError {
     	//括号
 		if(check(TokenType.L_PAREN))
 		{
 			expect(TokenType.L_PAREN);
-			String str = analyseCompare_expr();
+			Type str = analyseCompare_expr();
 			expect(TokenType.R_PAREN);
 			return str;
 		}
-		//函数
-		else if(check(TokenType.IDENT)&&(getType(peek().getValue().toString(),peek().getStartPos()).charAt(0)=='f'))
+		//函数、变量
+		else if(check(TokenType.IDENT))
 		{
-			var fn = next();
-			String str = this.symbolTable.get(fn.getValue().toString()).type.substring(2);
-			if(str.equals("void"))
-				this.insructions.add(new Pair<String, Long>("1a",(long) 0));
-			else
-				this.insructions.add(new Pair<String, Long>("1a",(long) 1));
-			expect(TokenType.L_PAREN);
-			while(!check(TokenType.R_PAREN))
-			{
-				analyseExpr();
-				if(!check(TokenType.COMMA))
-					break;
-				expect(TokenType.COMMA);
-			}
-			expect(TokenType.R_PAREN);
-			if(this.ku.contains(fn.getValue().toString()))
-				this.insructions.add(new Pair<String, Long>("4a",(long) this.CallNameNum++));
-			else if(this.function.get(fn.getValue().toString())!=null)
-				this.insructions.add(new Pair<String, Long>("48",this.function.get(fn.getValue().toString()).longValue()));
-			return str;
+			var nameToken = next();
+			var entry = lookup(nameToken);
+			if(entry.type.isFunction())
+				return analyseCall(nameToken, entry.type);
+			checkInitialized(entry, nameToken);
+			loadAddress(entry);
+			this.code.add(Opcode.LOAD64);
+			return entry.type;
 		}
 		//负号
 		else if(check(TokenType.MINUS))
 		{
 			expect(TokenType.MINUS);
-			String str = analyseExpr();
-			if(str.equals("int"))
-				this.insructions.add(new Pair<String, Long>("34",(long) -1));
+			Type str = analyseExpr();
+			if(str == Type.INT)
+				addOperation(Opcode.NEG_I);
 			else
-				this.insructions.add(new Pair<String, Long>("35",(long) -1));
+				addOperation(Opcode.NEG_F);
 			return str;
 		}
 		else if(check(TokenType.UINT_LITERAL))
 		{
 			var nameToken = expect(TokenType.UINT_LITERAL);
-			this.insructions.add(new Pair<String, Long>("01",((Integer)(nameToken.getValue())).longValue()));
-			return "int";
+			this.code.add(Opcode.PUSH, tokens.intValue(nameToken));
+			return Type.INT;
 		}
 		else if(check(TokenType.DOUBLE_LITERAL))
 		{
 			var nameToken = expect(TokenType.DOUBLE_LITERAL);
-			this.insructions.add(new Pair<String, Long>("01",Double.doubleToRawLongBits((Double) nameToken.getValue())));
-			return "double";
+			this.code.add(Opcode.PUSH, Double.doubleToRawLongBits(tokens.doubleValue(nameToken)));
+			return Type.DOUBLE;
 		}
 		else if(check(TokenType.STRING_LITERAL))
 		{
 			var nameToken = expect(TokenType.STRING_LITERAL);
-			this.insructions.add(new Pair<String, Long>("01",this.global.get(nameToken.getValue().toString()).longValue()));
-			return "string";
-		}
-		else if(check(TokenType.IDENT))
-		{
-			var nameToken = expect(TokenType.IDENT);
-			if(!this.symbolTable.get(nameToken.getValue().toString()).isInitialized)
-				throw new AnalyzeError(ErrorCode.NotInitialized,nameToken.getStartPos());
-			if(this.arga.get(nameToken.getValue().toString())!=null)
-				this.insructions.add(new Pair<String, Long>("0b",this.arga.get(nameToken.getValue().toString()).longValue()));
-			else if(this.loca.get(nameToken.getValue().toString())!=null)
-				this.insructions.add(new Pair<String, Long>("0a",this.loca.get(nameToken.getValue().toString()).longValue()));
-			else if(this.globa.get(nameToken.getValue().toString())!=null)
-				this.insructions.add(new Pair<String, Long>("0c",this.globa.get(nameToken.getValue().toString()).longValue()));
-			else
-				throw new AnalyzeError(ErrorCode.NotDeclared,nameToken.getStartPos());
-			this.insructions.add(new Pair<String, Long>("13",(long) -1));
-			return this.symbolTable.get(nameToken.getValue().toString()).type;
+			this.code.add(Opcode.PUSH, this.global.get(text(nameToken)));
+			return Type.STRING;
 		}
 		else
-			throw new AnalyzeError(ErrorCode.InvalidPrint, peek().getStartPos());
+			throw new AnalyzeError(ErrorCode.InvalidPrint, pos(peek()));
+    }
+    
+    private Type analyseExpr3(int nameToken) throws CompileError{
+    	var entry = lookup(nameToken);
+    	checkInitialized(entry, nameToken);
+		loadAddress(entry);
+		return entry.type;
     }
     
-    private String analyseExpr3(Token nameToken) throws CompileError{
-    	if(!this.symbolTable.get(nameToken.getValue().toString()).isInitialized)
-			throw new AnalyzeError(ErrorCode.NotInitialized,nameToken.getStartPos());
-		if(this.arga.get(nameToken.getValue().toString())!=null)
-			this.insructions.add(new Pair<String, Long>("0b",this.arga.get(nameToken.getValue().toString()).longValue()));
-		else if(this.loca.get(nameToken.getValue().toString())!=null)
-			this.insructions.add(new Pair<String, Long>("0a",this.loca.get(nameToken.getValue().toString()).longValue()));
-		else if(this.globa.get(nameToken.getValue().toString())!=null)
-			this.insructions.add(new Pair<String, Long>("0c",this.globa.get(nameToken.getValue().toString()).longValue()));
+    /**
+     * 函数调用，fn 是函数名
+     */
+    private Type analyseCall(int fn, Type fnType) throws CompileError {
+		Type str = fnType.getReturnType();
+		if(str == Type.VOID)
+			this.code.add(Opcode.STACKALLOC, 0);
 		else
-			throw new AnalyzeError(ErrorCode.NotDeclared,nameToken.getStartPos());
-		return this.symbolTable.get(nameToken.getValue().toString()).type;
+			this.code.add(Opcode.STACKALLOC, 1);
+		expect(TokenType.L_PAREN);
+		//检查参数个数和类型
+		List<Type> params = fnType.getParamTypes();
+		int argc = 0;
+		while(!check(TokenType.R_PAREN))
+		{
+			var arg = peek();
+			Type argType = analyseExpr();
+			if(argc >= params.size())
+				throw new AnalyzeError(ErrorCode.ArgumentCountMismatch,pos(arg));
+			if(argType != params.get(argc))
+				throw new AnalyzeError(ErrorCode.TypeMismatch,pos(arg));
+			argc++;
+			if(!check(TokenType.COMMA))
+				break;
+			expect(TokenType.COMMA);
+		}
+		if(argc != params.size())
+			throw new AnalyzeError(ErrorCode.ArgumentCountMismatch,pos(peek()));
+		expect(TokenType.R_PAREN);
+		//标准库函数按名字调用，参数是函数名在全局表里的下标
+		if(Builtin.isBuiltin(text(fn)))
+			this.code.add(Opcode.CALLNAME, this.global.get(text(fn)));
+		else if(calleeIndex(text(fn))!=null)
+			this.code.add(Opcode.CALL, calleeIndex(text(fn)));
+		return str;
     }
     
     /**
@@ -858,29 +1025,28 @@ public final class Analyser {
     private void analyseIf_stmt() throws CompileError {
     	expect(TokenType.IF_KW);
     	analyseCompare_expr();
-    	this.insructions.add(new Pair<String, Long>("43",(long) 1));
-    	this.insructions.add(new Pair<String, Long>("41",(long) -1));
-    	int i=this.insructions.size();
-    	int j=0;
+    	int elseLabel = this.code.newLabel();
+    	int endLabel = this.code.newLabel();
+    	this.code.add(Opcode.BR_TRUE, 1);
+    	this.code.addBranch(Opcode.BR, elseLabel);
     	analyseBlock_stmt();
     	if(check(TokenType.ELSE_KW))
     	{
     		expect(TokenType.ELSE_KW);
-    		this.insructions.add(new Pair<String, Long>("41",(long) 0));
-    		j=this.insructions.size();
+    		this.code.addBranch(Opcode.BR, endLabel);
+    		this.code.bind(elseLabel);
     		if(check(TokenType.IF_KW))
     			analyseIf_stmt();
     		else
     			analyseBlock_stmt();
+    		this.code.add(Opcode.BR, 0);
     	}
-    	this.insructions.add(new Pair<String, Long>("41",(long) 0));
-    	if(j!=0)
+    	else
     	{
-    		this.insructions.set((i-1),new Pair<String, Long>("41",(long) (j-i)));
-    		this.insructions.set((j-1),new Pair<String, Long>("41",(long) (this.insructions.size()-j)));
+    		this.code.add(Opcode.BR, 0);
+    		this.code.bind(elseLabel);
     	}
-    	else
-    		this.insructions.set((i-1),new Pair<String, Long>("41",(long) (this.insructions.size()-i)));
+    	this.code.bind(endLabel);
     }
     
     /**
@@ -888,16 +1054,33 @@ public final class Analyser {
      */
     private void analyseWhile_stmt() throws CompileError {
     	expect(TokenType.WHILE_KW);
-    	this.insructions.add(new Pair<String, Long>("41",(long) 0));
-    	int i=this.insructions.size();
+    	int condLabel = this.code.newLabel();
+    	int endLabel = this.code.newLabel();
+    	this.code.add(Opcode.BR, 0);
+    	this.code.bind(condLabel);
     	analyseCompare_expr();
-    	this.insructions.add(new Pair<String, Long>("43",(long) 1));
-    	this.insructions.add(new Pair<String, Long>("41",(long) -1));
-    	int j=this.insructions.size();
+    	this.code.add(Opcode.BR_TRUE, 1);
+    	this.code.addBranch(Opcode.BR, endLabel);
+    	this.loops.push(new int[] {condLabel, endLabel});
     	analyseBlock_stmt();
-    	this.insructions.add(new Pair<String, Long>("41",(long) (i-this.insructions.size()-1)));
-    	int k=this.insructions.size();
-    	this.insructions.set((j-1),new Pair<String, Long>("41",(long) (k-j)));
+    	this.loops.pop();
+    	this.code.addBranch(Opcode.BR, condLabel);
+    	this.code.bind(endLabel);
+    }
+    
+    /**
+     * break、continue语句
+     */
+    private void analyseBreak_stmt() throws CompileError {
+    	var keyword = next();
+    	if(this.loops.isEmpty())
+    		throw new AnalyzeError(ErrorCode.BreakOutsideLoop,pos(keyword));
+    	expect(TokenType.SEMICOLON);
+    	var loop = this.loops.peek();
+    	if(tokens.type(keyword) == TokenType.BREAK_KW)
+    		this.code.addBranch(Opcode.BR, loop[1]);
+    	else
+    		this.code.addBranch(Opcode.BR, loop[0]);
     }
     
     /**
@@ -911,10 +1094,10 @@ public final class Analyser {
     	}
     	else
     	{
-    		this.insructions.add(new Pair<String, Long>("0b",(long) -1));
+    		this.code.add(Opcode.ARGA, this.retSlots-1);
     		analyseCompare_expr();
     		expect(TokenType.SEMICOLON);
-    		this.insructions.add(new Pair<String, Long>("17",(long) -1));
+    		this.code.add(Opcode.STORE64);
     	}
     }
     
@@ -935,16 +1118,25 @@ public final class Analyser {
     	expect(TokenType.R_BRACE);
     }
     
+    /**
+     * 声明一个变量，全局层是全局变量，否则是局部变量，下标依次分配
+     */
+    private void addVariable(int nameToken, Type type, boolean isInitialized, boolean isConstant) throws AnalyzeError {
+    	if(this.symbolTable.depth()==0)
+    		addSymbol(text(nameToken),type,isInitialized,isConstant,StorageClass.GLOBAL,this.globa_num++,pos(nameToken));
+    	else
+    		addSymbol(text(nameToken),type,isInitialized,isConstant,StorageClass.LOCAL,this.loca_num++,pos(nameToken));
+    }
+    
     /**
      * 声明语句
      */
     private void analyseDecl_stmt() throws CompileError {
-    	if(nextIf(TokenType.CONST_KW) != null) {
-    		if(this.lay==0) {
-    			this.CallNameNum++;
-    			this.insructions.add(new Pair<String, Long>("0c",(long) this.globa_num));
+    	if(nextIf(TokenType.CONST_KW)) {
+    		if(this.symbolTable.depth()==0) {
+    			this.code.add(Opcode.GLOBA, this.globa_num);
     		}else {
-    			this.insructions.add(new Pair<String, Long>("0a",(long) this.loca_num));
+    			this.code.add(Opcode.LOCA, this.loca_num);
     		}
     		var nameToken = expect(TokenType.IDENT);
     		expect(TokenType.COLON);
@@ -952,15 +1144,10 @@ public final class Analyser {
     		expect(TokenType.ASSIGN);
     		analyseExpr();
     		expect(TokenType.SEMICOLON);
-    		if(this.lay==0) {
-    			this.globa.put(nameToken.getValue().toString(), this.globa_num++);
-    		}else {
-    			this.loca.put(nameToken.getValue().toString(), this.loca_num++);
-    		}
-    		addSymbol(nameToken.getValue().toString(),ty.getValue().toString(),true,true,this.lay,nameToken.getStartPos());
-    		this.insructions.add(new Pair<String, Long>("17",(long) -1));
+    		addVariable(nameToken,Type.of(text(ty)),true,true);
+    		this.code.add(Opcode.STORE64);
     	}
-    	else if(nextIf(TokenType.LET_KW) != null) {
+    	else if(nextIf(TokenType.LET_KW)) {
     		boolean isInitialized=false;
     		var nameToken = expect(TokenType.IDENT);
     		expect(TokenType.COLON);
@@ -968,76 +1155,38 @@ public final class Analyser {
     		if(check(TokenType.ASSIGN))
     		{
     			expect(TokenType.ASSIGN);
-    			if(this.lay==0) {
-    				this.insructions.add(new Pair<String, Long>("0c",(long) this.globa_num));
+    			if(this.symbolTable.depth()==0) {
+    				this.code.add(Opcode.GLOBA, this.globa_num);
         		}else {
-        			this.insructions.add(new Pair<String, Long>("0a",(long) this.loca_num));
+        			this.code.add(Opcode.LOCA, this.loca_num);
         		}
     			analyseExpr();
     			isInitialized=true;
     		}
-    		if(this.lay==0) {
-    			this.CallNameNum++;
-    			this.globa.put(nameToken.getValue().toString(), this.globa_num++);
-    		}else {
-    			this.loca.put(nameToken.getValue().toString(), this.loca_num++);
-    		}
     		expect(TokenType.SEMICOLON);
-    		if(isInitialized==false)
-    			addSymbol(nameToken.getValue().toString(),ty.getValue().toString(),false,false,this.lay,nameToken.getStartPos());
-    		else
-    		{
-    			addSymbol(nameToken.getValue().toString(),ty.getValue().toString(),true,false,this.lay,nameToken.getStartPos());
-    			this.insructions.add(new Pair<String, Long>("17",(long) -1));
-    		}
+    		addVariable(nameToken,Type.of(text(ty)),isInitialized,false);
+    		if(isInitialized)
+    			this.code.add(Opcode.STORE64);
     	}
     }
     
     /**
-     * 8字节16进制数
+     * 读完的函数头
      */
-    private String hex32(Long long1) {
-    	String hex = Long.toHexString(long1);
-		for(int z=hex.length();z<8;)
-		{
-			hex='0'+hex;
-			z=hex.length();
-		}
-		if(long1<0)
-			hex=hex.substring(8);
-		int q=0;
-		for(int z=0;z<8;z++)
-		{
-			q+=1;
-			if(z%2==1)
-			{
-				hex=hex.substring(0,q)+' '+hex.substring(q);
-				q+=1;
-			}
-		}
-		return hex;
-    }
-    
-    /**
-     * 16字节16进制数
-     */
-    private String hex64(Long long1) {
-    	String hex = Long.toHexString(long1);
-		for(int z=hex.length();z<16;)
-		{
-			hex='0'+hex;
-			z=hex.length();
-		}
-		int q=0;
-		for(int z=0;z<16;z++)
-		{
-			q+=1;
-			if(z%2==1)
-			{
-				hex=hex.substring(0,q)+' '+hex.substring(q);
-				q+=1;
-			}
-		}
-		return hex;
+    private static final class FunctionHeader {
+    	int nameToken;
+    	List<Integer> paramNames = new ArrayList<>();
+    	List<Type> paramTypes = new ArrayList<>();
+    	List<Boolean> paramConst = new ArrayList<>();
+    	Type retType;
+    	/** fn 的下标 */
+    	int start;
+    	/** 函数体 { 的下标 */
+    	int bodyStart;
+    	/** 函数体 } 之后的下标，块没有结束时是 0 */
+    	int end;
+    	/** 缓存键，不用缓存时是 null */
+    	String cacheKey;
     }
+
 }
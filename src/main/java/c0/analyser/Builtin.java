@@ -0,0 +1,66 @@
+package c0.analyser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 标准库函数
+ *
+ * App、Static 和 Analyser 共用这一张表，只读，多个编译任务同时用也没有问题。
+ * 调用时用 callname，参数是函数名在全局表里的下标，由 Static 登记。
+ */
+public enum Builtin {
+    GETINT("getint", Type.function(Type.INT)),
+    GETDOUBLE("getdouble", Type.function(Type.DOUBLE)),
+    GETCHAR("getchar", Type.function(Type.INT)),
+    PUTINT("putint", Type.function(Type.VOID, Type.INT)),
+    PUTDOUBLE("putdouble", Type.function(Type.VOID, Type.DOUBLE)),
+    PUTCHAR("putchar", Type.function(Type.VOID, Type.INT)),
+    PUTSTR("putstr", Type.function(Type.VOID, Type.STRING)),
+    PUTLN("putln", Type.function(Type.VOID));
+
+    /** 函数名 -> 标准库函数 */
+    private static final Map<String, Builtin> BY_NAME;
+
+    static {
+        var map = new HashMap<String, Builtin>();
+        for (var builtin : values()) {
+            map.put(builtin.name, builtin);
+        }
+        BY_NAME = Collections.unmodifiableMap(map);
+    }
+
+    private final String name;
+    private final Type type;
+
+    private Builtin(String name, Type type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * C0 里的函数名
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 函数类型
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * 名字对应的标准库函数，不是时返回 null
+     */
+    public static Builtin of(String name) {
+        return BY_NAME.get(name);
+    }
+
+    public static boolean isBuiltin(String name) {
+        return BY_NAME.containsKey(name);
+    }
+}
@@ -0,0 +1,225 @@
+package c0.analyser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import c0.instruction.CodeBuffer;
+import c0.instruction.Function;
+import c0.instruction.Opcode;
+import c0.tokenizer.TokenStream;
+import c0.tokenizer.TokenType;
+
+/**
+ * 磁盘上的函数缓存，一个函数一个文件
+ *
+ * 键是 SHA-256，包括：全局变量声明的 token、前面所有函数头的 token、
+ * 函数自己的 token，以及函数里用到的名字和字符串在 Static 全局表里的下标。
+ * 这些都没变时函数的分析结果也不会变，任何一个变了（包括全局下标移动）都会换一个键。
+ *
+ * 读写失败都当作没有命中，不影响编译。
+ */
+public class FunctionCache {
+    private static final int MAGIC = 0x63306663;
+
+    /** 改变缓存内容或者代码生成方式时加一，旧的缓存就不会再被用到 */
+    private static final int VERSION = 3;
+
+    private Path dir;
+
+    public FunctionCache(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            // 建不了目录时每次都不命中，写入也会失败
+        }
+    }
+
+    /**
+     * 一个函数的分析结果
+     */
+    static final class Entry {
+        Function function;
+        /** 赋值过的全局变量 */
+        List<Integer> assignedGlobals = new ArrayList<>();
+        /** 读取时还没确定是否赋值的全局变量：下标、相对函数开头的 token 偏移 */
+        List<int[]> deferredReads = new ArrayList<>();
+    }
+
+    /**
+     * 读取缓存，没有或者读不出来时返回 null
+     */
+    Entry load(String key) {
+        try (InputStream input = Files.newInputStream(file(key))) {
+            var in = new DataInputStream(input);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String name = in.readUTF();
+            int nameIndex = in.readInt();
+            int retSlots = in.readInt();
+            int paramSlots = in.readInt();
+            int locSlots = in.readInt();
+            int size = in.readInt();
+            // 文件可能是坏的，不按 size 预先分配
+            var code = new CodeBuffer();
+            for (int i = 0; i < size; i++) {
+                var op = Opcode.of(in.readUnsignedByte());
+                long operand = in.readLong();
+                if (op == null) {
+                    return null;
+                }
+                code.add(op, operand);
+            }
+            var entry = new Entry();
+            entry.function = new Function(name, nameIndex, retSlots, paramSlots, locSlots, code);
+            int assigned = in.readInt();
+            for (int i = 0; i < assigned; i++) {
+                entry.assignedGlobals.add(in.readInt());
+            }
+            int deferred = in.readInt();
+            for (int i = 0; i < deferred; i++) {
+                entry.deferredReads.add(new int[] { in.readInt(), in.readInt() });
+            }
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 写入缓存，先写临时文件再改名，其他进程不会读到写了一半的文件
+     */
+    void store(String key, Entry entry) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        var function = entry.function;
+        var code = function.getCode();
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(function.getName());
+            out.writeInt(function.getNameIndex());
+            out.writeInt(function.getRetSlots());
+            out.writeInt(function.getParamSlots());
+            out.writeInt(function.getLocSlots());
+            out.writeInt(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                out.writeByte(code.opcode(i).getCode());
+                out.writeLong(code.operand(i));
+            }
+            out.writeInt(entry.assignedGlobals.size());
+            for (int slot : entry.assignedGlobals) {
+                out.writeInt(slot);
+            }
+            out.writeInt(entry.deferredReads.size());
+            for (int[] read : entry.deferredReads) {
+                out.writeInt(read[0]);
+                out.writeInt(read[1]);
+            }
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            try {
+                Files.write(tmp, bytes.toByteArray());
+                Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            // 写不进去就算了，下次重新分析
+        }
+    }
+
+    private Path file(String key) {
+        return dir.resolve(key + ".fn");
+    }
+
+    /**
+     * 计算缓存键用的 SHA-256
+     */
+    static final class Hasher {
+        private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+        private MessageDigest md;
+
+        Hasher() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // 每个 Java 平台都必须支持 SHA-256
+                throw new IllegalStateException(e);
+            }
+            putInt(VERSION);
+        }
+
+        Hasher putInt(int value) {
+            md.update((byte) (value >>> 24));
+            md.update((byte) (value >>> 16));
+            md.update((byte) (value >>> 8));
+            md.update((byte) value);
+            return this;
+        }
+
+        Hasher putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        Hasher putString(String value) {
+            putInt(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                md.update((byte) (c >>> 8));
+                md.update((byte) c);
+            }
+            return this;
+        }
+
+        Hasher putBytes(byte[] value) {
+            putInt(value.length);
+            md.update(value);
+            return this;
+        }
+
+        /**
+         * tokens 中 [from, to) 的类型和值，不包括位置
+         */
+        Hasher putTokens(TokenStream tokens, int from, int to) {
+            putInt(to - from);
+            for (int i = from; i < to; i++) {
+                var type = tokens.type(i);
+                putInt(type.ordinal());
+                if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL || type == TokenType.ty) {
+                    putString(tokens.text(i));
+                } else if (type == TokenType.UINT_LITERAL || type == TokenType.CHAR_LITERAL) {
+                    putInt(tokens.intValue(i));
+                } else if (type == TokenType.DOUBLE_LITERAL) {
+                    putLong(Double.doubleToRawLongBits(tokens.doubleValue(i)));
+                }
+            }
+            return this;
+        }
+
+        byte[] digest() {
+            return md.digest();
+        }
+
+        String hexDigest() {
+            var bytes = md.digest();
+            var sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(DIGITS[(b >>> 4) & 0xf]).append(DIGITS[b & 0xf]);
+            }
+            return sb.toString();
+        }
+    }
+}
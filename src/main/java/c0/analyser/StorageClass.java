@@ -0,0 +1,30 @@
+package c0.analyser;
+
+import c0.instruction.Opcode;
+
+/**
+ * 符号存放的位置，决定取地址用哪条指令
+ */
+public enum StorageClass {
+    /** 函数参数，arga */
+    ARG(Opcode.ARGA),
+    /** 局部变量，loca */
+    LOCAL(Opcode.LOCA),
+    /** 全局变量，globa */
+    GLOBAL(Opcode.GLOBA),
+    /** 函数（包括标准库），没有地址 */
+    FUNCTION(null);
+
+    private final Opcode addressOpcode;
+
+    StorageClass(Opcode addressOpcode) {
+        this.addressOpcode = addressOpcode;
+    }
+
+    /**
+     * 取地址的指令，函数是 null
+     */
+    public Opcode getAddressOpcode() {
+        return addressOpcode;
+    }
+}
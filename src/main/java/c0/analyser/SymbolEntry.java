@@ -1,22 +1,26 @@
 package c0.analyser;
 
 public class SymbolEntry {
-    String type;//int，double，void，fn为"f-"+返回类型，string，char，boolean
+    Type type;//int，double，void，string，boolean，函数是带签名的函数类型
 	boolean isConstant;
     boolean isInitialized;
-    int stackOffset;
+    StorageClass storage;
+    /** 参数、局部变量或全局变量的下标 */
+    int slot;
     int layer;
 
     /**
      * @param isConstant
      * @param isDeclared
-     * @param stackOffset
+     * @param storage
+     * @param slot
      */
-    public SymbolEntry(String type,boolean isConstant, boolean isDeclared, int stackOffset,int layer) {
+    public SymbolEntry(Type type,boolean isConstant, boolean isDeclared, StorageClass storage, int slot,int layer) {
         this.type = type;
     	this.isConstant = isConstant;
         this.isInitialized = isDeclared;
-        this.stackOffset = stackOffset;
+        this.storage = storage;
+        this.slot = slot;
         this.layer = layer;
     }
 
@@ -28,16 +32,20 @@ public class SymbolEntry {
         this.layer = layer;
     }
     
-    public String getType() {
+    public Type getType() {
 		return type;
 	}
 	
 
+    public StorageClass getStorage() {
+        return storage;
+    }
+
     /**
-     * @return the stackOffset
+     * @return the slot
      */
-    public int getStackOffset() {
-        return stackOffset;
+    public int getSlot() {
+        return slot;
     }
 
     /**
@@ -69,13 +77,13 @@ public class SymbolEntry {
     }
 
     /**
-     * @param stackOffset the stackOffset to set
+     * @param slot the slot to set
      */
-    public void setStackOffset(int stackOffset) {
-        this.stackOffset = stackOffset;
+    public void setSlot(int slot) {
+        this.slot = slot;
     }
 
-	public void setType(String type) {
+	public void setType(Type type) {
 		this.type = type;
 	}
 }
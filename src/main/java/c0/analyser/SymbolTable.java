@@ -0,0 +1,106 @@
+package c0.analyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 分层的符号表
+ *
+ * 所有层共用一个 HashMap，每次声明都在撤销日志里记下被它遮住的旧符号（没有就是 null）。
+ * 退出一层时按日志倒着恢复，只和这一层声明的符号个数有关。
+ *
+ * 并行分析时每个函数有自己的表，找不到的名字再去只读的 parent（全局层）里找，
+ * parent 里下标大于 functionLimit 的函数（也就是后面的函数）看不见。
+ */
+public class SymbolTable {
+    private HashMap<String, SymbolEntry> entries = new HashMap<>();
+
+    private SymbolTable parent;
+
+    private int functionLimit = Integer.MAX_VALUE;
+
+    /** 撤销日志：名字和被遮住的符号 */
+    private ArrayList<String> logNames = new ArrayList<>();
+    private ArrayList<SymbolEntry> logShadowed = new ArrayList<>();
+
+    /** 每一层开始时日志的长度 */
+    private int[] marks = new int[8];
+
+    /** 当前层数，全局是 0 */
+    private int depth = 0;
+
+    public SymbolTable() {
+    }
+
+    /**
+     * 在 parent 之上的表，parent 不会被修改
+     *
+     * @param functionLimit 能看见的最后一个函数的下标
+     */
+    public SymbolTable(SymbolTable parent, int functionLimit) {
+        this.parent = parent;
+        this.functionLimit = functionLimit;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public void enterScope() {
+        if (depth == marks.length) {
+            marks = Arrays.copyOf(marks, depth * 2);
+        }
+        marks[depth++] = logNames.size();
+    }
+
+    /**
+     * 退出当前层，删掉这一层的符号并恢复被它们遮住的符号
+     */
+    public void exitScope() {
+        if (depth == 0) {
+            throw new IllegalStateException("exit from global scope");
+        }
+        int mark = marks[--depth];
+        for (int i = logNames.size() - 1; i >= mark; i--) {
+            String name = logNames.remove(i);
+            SymbolEntry shadowed = logShadowed.remove(i);
+            if (shadowed == null) {
+                entries.remove(name);
+            } else {
+                entries.put(name, shadowed);
+            }
+        }
+    }
+
+    public SymbolEntry get(String name) {
+        var entry = entries.get(name);
+        if (entry == null && parent != null) {
+            entry = parent.get(name);
+            if (entry != null && entry.storage == StorageClass.FUNCTION && entry.slot > functionLimit) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 名字是否已经在当前层声明过
+     */
+    public boolean isDeclaredInScope(String name) {
+        var entry = entries.get(name);
+        return entry != null && entry.layer == depth;
+    }
+
+    /**
+     * 在当前层声明一个符号，外层的同名符号被遮住
+     */
+    public void put(String name, SymbolEntry entry) {
+        var shadowed = entries.put(name, entry);
+        // 全局层不会退出，不用记日志
+        if (depth > 0) {
+            logNames.add(name);
+            logShadowed.add(shadowed);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package c0.analyser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 类型
+ *
+ * 每种类型只有一个对象，比较类型直接用 ==。
+ * 函数类型记录参数和返回值类型，同样的签名共用一个对象。
+ */
+public final class Type {
+    public static final Type INT = new Type("int");
+    public static final Type DOUBLE = new Type("double");
+    public static final Type VOID = new Type("void");
+    public static final Type STRING = new Type("string");
+    public static final Type BOOLEAN = new Type("boolean");
+
+    /** 签名 -> 函数类型 */
+    private static final ConcurrentHashMap<String, Type> FUNCTIONS = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    /** 函数的返回值类型，不是函数时为 null */
+    private final Type returnType;
+
+    private final List<Type> paramTypes;
+
+    private Type(String name) {
+        this.name = name;
+        this.returnType = null;
+        this.paramTypes = Collections.emptyList();
+    }
+
+    private Type(String name, Type returnType, List<Type> paramTypes) {
+        this.name = name;
+        this.returnType = returnType;
+        this.paramTypes = paramTypes;
+    }
+
+    /**
+     * 类型关键字（ty）对应的类型，不认识时返回 null
+     */
+    public static Type of(String name) {
+        switch (name) {
+        case "int":
+            return INT;
+        case "double":
+            return DOUBLE;
+        case "void":
+            return VOID;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * 函数类型
+     */
+    public static Type function(Type returnType, List<Type> paramTypes) {
+        var sb = new StringBuilder("fn(");
+        for (int i = 0; i < paramTypes.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(paramTypes.get(i).name);
+        }
+        String name = sb.append(") -> ").append(returnType.name).toString();
+        var type = FUNCTIONS.get(name);
+        if (type == null) {
+            var params = Collections.unmodifiableList(new ArrayList<>(paramTypes));
+            type = FUNCTIONS.computeIfAbsent(name, n -> new Type(n, returnType, params));
+        }
+        return type;
+    }
+
+    public static Type function(Type returnType, Type... paramTypes) {
+        return function(returnType, List.of(paramTypes));
+    }
+
+    public boolean isFunction() {
+        return returnType != null;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    public List<Type> getParamTypes() {
+        return paramTypes;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,100 @@
+package c0.emitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import c0.instruction.Function;
+
+/**
+ * 二进制形式的 o0，可以直接交给 navm 执行
+ *
+ * 所有内容先写进内存缓冲区，finish 时一次写到输出流
+ */
+public class BinaryEmitter implements Emitter {
+    private OutputStream output;
+
+    /** 模块头和全局变量 */
+    private ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+    /** 函数体，函数个数要等全部写完才知道 */
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private int functionCount = 0;
+
+    public BinaryEmitter(OutputStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public void begin(Map<Integer, String> globals) {
+        var out = new DataOutputStream(head);
+        try {
+            out.writeInt(0x72303b3e);
+            out.writeInt(1);
+            out.writeInt(globals.size() + 1);
+            for (int i = 0; i < globals.size(); i++) {
+                String name = globals.get(i);
+                if (name.equals("0")) {
+                    out.writeByte(0);
+                    out.writeInt(8);
+                    out.writeLong(0);
+                } else {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(1);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.writeByte(1);
+            out.writeInt(6);
+            out.writeBytes("_start");
+        } catch (IOException e) {
+            // ByteArrayOutputStream 不会抛出 IOException
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void function(Function function) {
+        var out = new DataOutputStream(body);
+        try {
+            out.writeInt(function.getNameIndex());
+            out.writeInt(function.getRetSlots());
+            out.writeInt(function.getParamSlots());
+            out.writeInt(function.getLocSlots());
+            var code = function.getCode();
+            out.writeInt(code.size());
+            for (int i = 0; i < code.size(); i++) {
+                var op = code.opcode(i);
+                out.writeByte(op.getCode());
+                switch (op.getOperandSize()) {
+                case 8:
+                    out.writeLong(code.operand(i));
+                    break;
+                case 4:
+                    out.writeInt((int) code.operand(i));
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        functionCount++;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        var out = new DataOutputStream(head);
+        out.writeInt(functionCount);
+        body.writeTo(head);
+        head.writeTo(output);
+        output.flush();
+    }
+}
@@ -0,0 +1,30 @@
+package c0.emitter;
+
+import java.io.IOException;
+import java.util.Map;
+
+import c0.instruction.Function;
+
+/**
+ * o0 目标文件的输出
+ *
+ * 调用顺序：begin 一次，然后按顺序对每个函数（第一个是 _start）调用 function，最后 finish
+ */
+public interface Emitter {
+    /**
+     * 模块头和全局变量表，_start 的名字由 Emitter 自己追加在最后
+     *
+     * @param globals 全局变量下标 -> 内容，"0" 表示一个 8 字节的变量
+     */
+    void begin(Map<Integer, String> globals);
+
+    /**
+     * 输出一个函数
+     */
+    void function(Function function);
+
+    /**
+     * 全部写完，把缓冲的内容刷到输出
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,46 @@
+package c0.emitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import c0.instruction.Function;
+import c0.vm.Module;
+
+/**
+ * 不输出文件，直接在内存里组装成 Module 交给 Navm 执行（--run）
+ */
+public class ModuleEmitter implements Emitter {
+    private List<byte[]> globals = new ArrayList<>();
+    private List<Function> functions = new ArrayList<>();
+
+    @Override
+    public void begin(Map<Integer, String> stas) {
+        for (int i = 0; i < stas.size(); i++) {
+            String name = stas.get(i);
+            // 和 BinaryEmitter 一样，"0" 是一个 8 字节的变量
+            if (name.equals("0"))
+                globals.add(new byte[8]);
+            else
+                globals.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        globals.add("_start".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void function(Function function) {
+        functions.add(function);
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    /**
+     * finish 之后取得编译好的模块
+     */
+    public Module getModule() {
+        return new Module(globals, functions);
+    }
+}
@@ -0,0 +1,131 @@
+package c0.emitter;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+import c0.analyser.Builtin;
+import c0.instruction.Function;
+import c0.util.HexWriter;
+
+/**
+ * 文本形式的 o0：每个字节写成两位十六进制数，用来调试和评测
+ */
+public class TextEmitter implements Emitter {
+    private PrintStream output;
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    /** 当前函数的文本，写完一个函数才交给 output */
+    private StringBuilder sb = new StringBuilder();
+
+    /** 已经输出的函数个数 */
+    private int count = 0;
+
+    public TextEmitter(PrintStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public void begin(Map<Integer, String> stas) {
+        if(stas.size()>0) {
+        	line("72 30 3b 3e");
+        	line("00 00 00 01");
+        	line();
+        	HexWriter.hex32(sb, stas.size()+1);
+        	line();
+        	line();
+        	line();
+        }
+        int func_num=0;
+        for(int i=0;i<stas.size();i++)
+        {
+            String name = stas.get(i);
+            if(name.equals("0"))
+            {
+            	line("00");
+            	line("00 00 00 08");
+            	line("00 00 00 00 00 00 00 00");
+            }
+            else
+            {
+            	line("01");
+            	HexWriter.hex32(sb, name.length());
+            	line();
+            	for(int j=0;j<name.length();j++)
+            		sb.append('\'').append(name.charAt(j)).append("' ");
+            	//标准库函数不算在函数个数里
+            	if(!Builtin.isBuiltin(name))
+            		func_num++;
+            	line();
+            }
+            line();
+        }
+        line("01");
+        line("00 00 00 06");
+        line("'_' 's' 't' 'a' 'r' 't'");
+        line();
+        HexWriter.hex32(sb, func_num+1);
+        line();
+        line();
+        line();
+        flush();
+    }
+
+    @Override
+    public void function(Function function) {
+        boolean start = count == 0;
+        count++;
+        HexWriter.hex32(sb, count);
+        line();
+        if (start) {
+        	line("00 00 00 00");
+        	line("00 00 00 00");
+        	line("00 00 00 00");
+        } else {
+        	HexWriter.hex32(sb, function.getRetSlots());
+        	line();
+        	HexWriter.hex32(sb, function.getParamSlots());
+        	line();
+        	HexWriter.hex32(sb, function.getLocSlots());
+        	line();
+        }
+        var code = function.getCode();
+        HexWriter.hex32(sb, code.size());
+        line();
+        for(int i=0;i<code.size();i++) {
+        	var op = code.opcode(i);
+        	sb.append("    ").append(op.getHex()).append(' ');
+        	// _start 里的 push 也按 4 字节输出
+        	if(!start&&op.getOperandSize()==8)
+        		HexWriter.hex64(sb, code.operand(i));
+        	else if(op.hasOperand())
+        		HexWriter.hex32(sb, code.operand(i));
+        	line();
+        }
+        line();
+        line();
+        flush();
+    }
+
+    @Override
+    public void finish() {
+        output.flush();
+    }
+
+    private void line(String text) {
+        sb.append(text);
+        line();
+    }
+
+    private void line() {
+        sb.append(NEWLINE);
+    }
+
+    /**
+     * 一个函数只写一次输出流
+     */
+    private void flush() {
+        output.append(sb);
+        sb.setLength(0);
+    }
+}
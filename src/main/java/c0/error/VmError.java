@@ -0,0 +1,12 @@
+package c0.error;
+
+/**
+ * 虚拟机运行时的错误，比如栈溢出、非法指令
+ */
+public class VmError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public VmError(String message) {
+        super(message);
+    }
+}
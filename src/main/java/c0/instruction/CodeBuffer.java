@@ -0,0 +1,140 @@
+package c0.instruction;
+
+import java.util.Arrays;
+
+/**
+ * 一个函数的指令序列
+ *
+ * 操作码和操作数分别存在 byte[] 和 long[] 里，没有操作数的指令操作数是 0
+ *
+ * 跳转可以先指向标号，标号的位置晚一点再确定，函数生成完时由 resolveLabels 一起算出相对偏移
+ */
+public class CodeBuffer {
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    private byte[] ops;
+    private long[] operands;
+    private int size = 0;
+
+    /** 标号绑定到的指令下标，还没绑定时是 -1 */
+    private int[] labels = new int[8];
+    private int labelCount = 0;
+
+    /** 跳到标号的指令：指令下标和标号 */
+    private int[] fixupIndex = new int[8];
+    private int[] fixupLabel = new int[8];
+    private int fixupCount = 0;
+
+    public CodeBuffer() {
+        this(64);
+    }
+
+    public CodeBuffer(int capacity) {
+        ops = new byte[Math.max(capacity, 4)];
+        operands = new long[ops.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(Opcode op) {
+        add(op, 0);
+    }
+
+    public void add(Opcode op, long operand) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+        }
+        ops[size] = (byte) op.ordinal();
+        operands[size] = operand;
+        size++;
+    }
+
+    /**
+     * 新建一个还没绑定位置的标号
+     */
+    public int newLabel() {
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    /**
+     * 把标号绑定到下一条要添加的指令
+     */
+    public void bind(int label) {
+        if (label < 0 || label >= labelCount || labels[label] != -1) {
+            throw new IllegalStateException("label " + label + " already bound or unknown");
+        }
+        labels[label] = size;
+    }
+
+    /**
+     * 添加一条跳到标号的跳转，偏移在 resolveLabels 时填上
+     */
+    public void addBranch(Opcode op, int label) {
+        if (fixupCount == fixupIndex.length) {
+            fixupIndex = Arrays.copyOf(fixupIndex, fixupCount * 2);
+            fixupLabel = Arrays.copyOf(fixupLabel, fixupCount * 2);
+        }
+        fixupIndex[fixupCount] = size;
+        fixupLabel[fixupCount] = label;
+        fixupCount++;
+        add(op, 0);
+    }
+
+    /**
+     * 填上所有跳到标号的跳转的相对偏移（相对下一条指令）
+     */
+    public void resolveLabels() {
+        for (int i = 0; i < fixupCount; i++) {
+            int target = labels[fixupLabel[i]];
+            if (target == -1) {
+                throw new IllegalStateException("label " + fixupLabel[i] + " is never bound");
+            }
+            setOperand(fixupIndex[i], target - (fixupIndex[i] + 1));
+        }
+        fixupCount = 0;
+    }
+
+    public Opcode opcode(int index) {
+        return OPCODES[ops[checkIndex(index)]];
+    }
+
+    public long operand(int index) {
+        return operands[checkIndex(index)];
+    }
+
+    public void set(int index, Opcode op, long operand) {
+        ops[checkIndex(index)] = (byte) op.ordinal();
+        operands[index] = operand;
+    }
+
+    /**
+     * 回填跳转偏移之类的操作数
+     */
+    public void setOperand(int index, long operand) {
+        operands[checkIndex(index)] = operand;
+    }
+
+    /**
+     * 只保留前 size 条指令
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IndexOutOfBoundsException("truncate to " + size + " of " + this.size);
+        }
+        this.size = size;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("instruction " + index + " of " + size);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,147 @@
+package c0.instruction;
+
+/**
+ * 常量折叠
+ *
+ * 生成运算指令时，如果它的操作数刚好是紧挨着的 push，就直接算出结果换成一条 push。
+ * 表达式的每个操作数至少生成一条指令，并且右操作数紧跟在左操作数后面，
+ * 所以末尾的 push 一定是这条运算的操作数，不会吃掉前面语句留下的值。
+ *
+ * 结果和 navm 执行时相同：整数 64 位回绕，除以 0 等运行时才报错的情况不折叠。
+ */
+public final class ConstantFolder {
+    private ConstantFolder() {
+    }
+
+    /**
+     * 尝试把 op 折叠进 code 末尾的 push
+     *
+     * @return 折叠成功时返回 true，这时 op 不用再添加
+     */
+    public static boolean fold(CodeBuffer code, Opcode op) {
+        switch (op) {
+        case NEG_I:
+        case NEG_F:
+        case NOT:
+        case SET_LT:
+        case SET_GT:
+        case ITOF:
+        case FTOI:
+            return foldUnary(code, op);
+        case ADD_I:
+        case SUB_I:
+        case MUL_I:
+        case DIV_I:
+        case ADD_F:
+        case SUB_F:
+        case MUL_F:
+        case DIV_F:
+        case CMP_I:
+        case CMP_F:
+            return foldBinary(code, op);
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isPush(CodeBuffer code, int index) {
+        return index >= 0 && code.opcode(index) == Opcode.PUSH;
+    }
+
+    private static boolean foldUnary(CodeBuffer code, Opcode op) {
+        int last = code.size() - 1;
+        if (!isPush(code, last)) {
+            return false;
+        }
+        long x = code.operand(last);
+        long result;
+        switch (op) {
+        case NEG_I:
+            result = -x;
+            break;
+        case NEG_F:
+            result = bits(-real(x));
+            break;
+        case NOT:
+            result = x == 0 ? 1 : 0;
+            break;
+        case SET_LT:
+            result = x < 0 ? 1 : 0;
+            break;
+        case SET_GT:
+            result = x > 0 ? 1 : 0;
+            break;
+        case ITOF:
+            result = bits((double) x);
+            break;
+        case FTOI:
+            result = (long) real(x);
+            break;
+        default:
+            return false;
+        }
+        code.setOperand(last, result);
+        return true;
+    }
+
+    private static boolean foldBinary(CodeBuffer code, Opcode op) {
+        int last = code.size() - 1;
+        if (!isPush(code, last) || !isPush(code, last - 1)) {
+            return false;
+        }
+        long l = code.operand(last - 1);
+        long r = code.operand(last);
+        long result;
+        switch (op) {
+        case ADD_I:
+            result = l + r;
+            break;
+        case SUB_I:
+            result = l - r;
+            break;
+        case MUL_I:
+            result = l * r;
+            break;
+        case DIV_I:
+            // 除以 0 留给 navm 报错
+            if (r == 0 || (l == Long.MIN_VALUE && r == -1)) {
+                return false;
+            }
+            result = l / r;
+            break;
+        case ADD_F:
+            result = bits(real(l) + real(r));
+            break;
+        case SUB_F:
+            result = bits(real(l) - real(r));
+            break;
+        case MUL_F:
+            result = bits(real(l) * real(r));
+            break;
+        case DIV_F:
+            result = bits(real(l) / real(r));
+            break;
+        case CMP_I:
+            result = Long.compare(l, r);
+            break;
+        case CMP_F:
+            // 和 navm 一样，有 NaN 时是 0
+            double a = real(l), b = real(r);
+            result = a < b ? -1 : a > b ? 1 : 0;
+            break;
+        default:
+            return false;
+        }
+        code.truncate(last);
+        code.setOperand(last - 1, result);
+        return true;
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+}
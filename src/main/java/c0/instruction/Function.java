@@ -0,0 +1,55 @@
+package c0.instruction;
+
+/**
+ * 一个编译好的函数，交给 Emitter 输出
+ */
+public class Function {
+    private String name;
+    private int nameIndex;
+    private int retSlots;
+    private int paramSlots;
+    private int locSlots;
+    private CodeBuffer code;
+
+    /**
+     * @param name         函数名
+     * @param nameIndex    函数名在全局变量表中的下标
+     * @param retSlots     返回值占的 slot 数
+     * @param paramSlots   参数个数
+     * @param locSlots     局部变量个数
+     * @param code         指令
+     */
+    public Function(String name, int nameIndex, int retSlots, int paramSlots, int locSlots,
+            CodeBuffer code) {
+        this.name = name;
+        this.nameIndex = nameIndex;
+        this.retSlots = retSlots;
+        this.paramSlots = paramSlots;
+        this.locSlots = locSlots;
+        this.code = code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNameIndex() {
+        return nameIndex;
+    }
+
+    public int getRetSlots() {
+        return retSlots;
+    }
+
+    public int getParamSlots() {
+        return paramSlots;
+    }
+
+    public int getLocSlots() {
+        return locSlots;
+    }
+
+    public CodeBuffer getCode() {
+        return code;
+    }
+}
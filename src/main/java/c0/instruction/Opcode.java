@@ -0,0 +1,124 @@
+package c0.instruction;
+
+/**
+ * navm 指令
+ *
+ * 每条指令一个字节的操作码，push 带 8 字节操作数，
+ * popn、loca、arga、globa、stackalloc、跳转和调用带 4 字节操作数，其余没有操作数
+ */
+public enum Opcode {
+    NOP(0x00, 0, "nop"),
+    PUSH(0x01, 8, "push"),
+    POP(0x02, 0, "pop"),
+    POPN(0x03, 4, "popn"),
+    DUP(0x04, 0, "dup"),
+    LOCA(0x0a, 4, "loca"),
+    ARGA(0x0b, 4, "arga"),
+    GLOBA(0x0c, 4, "globa"),
+    LOAD8(0x10, 0, "load.8"),
+    LOAD16(0x11, 0, "load.16"),
+    LOAD32(0x12, 0, "load.32"),
+    LOAD64(0x13, 0, "load.64"),
+    STORE8(0x14, 0, "store.8"),
+    STORE16(0x15, 0, "store.16"),
+    STORE32(0x16, 0, "store.32"),
+    STORE64(0x17, 0, "store.64"),
+    ALLOC(0x18, 0, "alloc"),
+    FREE(0x19, 0, "free"),
+    STACKALLOC(0x1a, 4, "stackalloc"),
+    ADD_I(0x20, 0, "add.i"),
+    SUB_I(0x21, 0, "sub.i"),
+    MUL_I(0x22, 0, "mul.i"),
+    DIV_I(0x23, 0, "div.i"),
+    ADD_F(0x24, 0, "add.f"),
+    SUB_F(0x25, 0, "sub.f"),
+    MUL_F(0x26, 0, "mul.f"),
+    DIV_F(0x27, 0, "div.f"),
+    DIV_U(0x28, 0, "div.u"),
+    SHL(0x29, 0, "shl"),
+    SHR(0x2a, 0, "shr"),
+    AND(0x2b, 0, "and"),
+    OR(0x2c, 0, "or"),
+    XOR(0x2d, 0, "xor"),
+    NOT(0x2e, 0, "not"),
+    CMP_I(0x30, 0, "cmp.i"),
+    CMP_U(0x31, 0, "cmp.u"),
+    CMP_F(0x32, 0, "cmp.f"),
+    NEG_I(0x34, 0, "neg.i"),
+    NEG_F(0x35, 0, "neg.f"),
+    ITOF(0x36, 0, "itof"),
+    FTOI(0x37, 0, "ftoi"),
+    SHRL(0x38, 0, "shrl"),
+    SET_LT(0x39, 0, "set.lt"),
+    SET_GT(0x3a, 0, "set.gt"),
+    BR(0x41, 4, "br"),
+    BR_FALSE(0x42, 4, "br.false"),
+    BR_TRUE(0x43, 4, "br.true"),
+    CALL(0x48, 4, "call"),
+    RET(0x49, 0, "ret"),
+    CALLNAME(0x4a, 4, "callname"),
+    SCAN_I(0x50, 0, "scan.i"),
+    SCAN_C(0x51, 0, "scan.c"),
+    SCAN_F(0x52, 0, "scan.f"),
+    PRINT_I(0x54, 0, "print.i"),
+    PRINT_C(0x55, 0, "print.c"),
+    PRINT_F(0x56, 0, "print.f"),
+    PRINT_S(0x57, 0, "print.s"),
+    PRINTLN(0x58, 0, "println"),
+    PANIC(0xfe, 0, "panic");
+
+    /** 操作码 -> 指令，不存在的是 null */
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode op : values()) {
+            BY_CODE[op.code] = op;
+        }
+    }
+
+    private final int code;
+    private final int operandSize;
+    private final String mnemonic;
+    private final String hex;
+
+    Opcode(int code, int operandSize, String mnemonic) {
+        this.code = code;
+        this.operandSize = operandSize;
+        this.mnemonic = mnemonic;
+        this.hex = String.format("%02x", code);
+    }
+
+    /**
+     * 操作码对应的指令，不认识时返回 null
+     */
+    public static Opcode of(int code) {
+        return BY_CODE[code & 0xff];
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * 操作数的字节数：0、4 或 8
+     */
+    public int getOperandSize() {
+        return operandSize;
+    }
+
+    public boolean hasOperand() {
+        return operandSize != 0;
+    }
+
+    /**
+     * 两位十六进制的操作码，文本 o0 里用
+     */
+    public String getHex() {
+        return hex;
+    }
+
+    @Override
+    public String toString() {
+        return mnemonic;
+    }
+}
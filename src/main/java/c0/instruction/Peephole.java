@@ -0,0 +1,183 @@
+package c0.instruction;
+
+import java.util.Arrays;
+
+/**
+ * 窥孔优化，在一个函数生成完之后、输出之前运行
+ *
+ * 跳转先换成绝对的目标下标，删改指令时只做标记，最后一起重新算相对偏移，
+ * 所以 analyseIf_stmt 和 analyseWhile_stmt 回填的偏移在优化之后仍然正确。
+ *
+ * 做的变换（反复进行直到没有变化）：
+ * 1. 删掉跳到下一条指令的 br（比如 if 后面的 br 0）
+ * 2. br.true 1; br X 合并成 br.false X，br.false 1; br X 合并成 br.true X
+ * 3. not; br.true X 合并成 br.false X，not; br.false X 合并成 br.true X
+ *    （>= 和 <= 生成的 set.lt/set.gt; not 后面接跳转时 not 就没了）
+ * 4. 删掉执行不到的指令，比如 ret、panic 和无条件 br 之后没有跳转进来的代码
+ *
+ * 被合并掉的第二条指令如果是别的跳转的目标就不合并。
+ */
+public final class Peephole {
+    private Opcode[] ops;
+    private long[] operands;
+    /** 跳转的绝对目标，不是跳转时为 -1 */
+    private int[] targets;
+    private boolean[] removed;
+    /** 是不是某条留下来的跳转的目标 */
+    private boolean[] isTarget;
+    private int size;
+
+    private Peephole(CodeBuffer code) {
+        size = code.size();
+        ops = new Opcode[size];
+        operands = new long[size];
+        targets = new int[size];
+        removed = new boolean[size];
+        isTarget = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            ops[i] = code.opcode(i);
+            operands[i] = code.operand(i);
+            targets[i] = isBranch(ops[i]) ? (int) (i + 1 + operands[i]) : -1;
+        }
+    }
+
+    /**
+     * 优化 code，直接修改它
+     */
+    public static void optimize(CodeBuffer code) {
+        var peephole = new Peephole(code);
+        while (peephole.removeUnreachable() | peephole.rewrite()) {
+        }
+        peephole.writeTo(code);
+    }
+
+    private static boolean isBranch(Opcode op) {
+        return op == Opcode.BR || op == Opcode.BR_TRUE || op == Opcode.BR_FALSE;
+    }
+
+    /**
+     * i 之后第一条没有删掉的指令，没有时是 size
+     */
+    private int next(int i) {
+        return resolve(i + 1);
+    }
+
+    /**
+     * 从 t 开始第一条没有删掉的指令，也就是跳到 t 实际会执行的指令
+     */
+    private int resolve(int t) {
+        while (t < size && removed[t]) {
+            t++;
+        }
+        return t;
+    }
+
+    private void findTargets() {
+        Arrays.fill(isTarget, false);
+        for (int i = 0; i < size; i++) {
+            if (!removed[i] && targets[i] >= 0) {
+                isTarget[resolve(targets[i])] = true;
+            }
+        }
+    }
+
+    /**
+     * 删掉从入口走不到的指令
+     */
+    private boolean removeUnreachable() {
+        var reached = new boolean[size];
+        var stack = new int[size + 1];
+        int top = 0;
+        int first = resolve(0);
+        if (first < size) {
+            stack[top++] = first;
+            reached[first] = true;
+        }
+        while (top > 0) {
+            int i = stack[--top];
+            var op = ops[i];
+            if (targets[i] >= 0) {
+                int t = resolve(targets[i]);
+                if (t < size && !reached[t]) {
+                    reached[t] = true;
+                    stack[top++] = t;
+                }
+            }
+            if (op != Opcode.BR && op != Opcode.RET && op != Opcode.PANIC) {
+                int n = next(i);
+                if (n < size && !reached[n]) {
+                    reached[n] = true;
+                    stack[top++] = n;
+                }
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < size; i++) {
+            if (!removed[i] && !reached[i]) {
+                removed[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean rewrite() {
+        findTargets();
+        boolean changed = false;
+        for (int i = resolve(0); i < size; i = next(i)) {
+            var op = ops[i];
+            int j = next(i);
+            if (op == Opcode.BR && resolve(targets[i]) == j) {
+                removed[i] = true;
+                changed = true;
+                continue;
+            }
+            if (j == size || isTarget[j]) {
+                continue;
+            }
+            if (op == Opcode.BR_TRUE && ops[j] == Opcode.BR && resolve(targets[i]) == next(j)) {
+                replace(i, j, Opcode.BR_FALSE);
+                changed = true;
+            } else if (op == Opcode.BR_FALSE && ops[j] == Opcode.BR && resolve(targets[i]) == next(j)) {
+                replace(i, j, Opcode.BR_TRUE);
+                changed = true;
+            } else if (op == Opcode.NOT && ops[j] == Opcode.BR_TRUE) {
+                replace(i, j, Opcode.BR_FALSE);
+                changed = true;
+            } else if (op == Opcode.NOT && ops[j] == Opcode.BR_FALSE) {
+                replace(i, j, Opcode.BR_TRUE);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 把 i 和 j 两条指令换成一条跳到 j 的目标的 op
+     */
+    private void replace(int i, int j, Opcode op) {
+        ops[i] = op;
+        targets[i] = targets[j];
+        removed[j] = true;
+    }
+
+    private void writeTo(CodeBuffer code) {
+        // newIndex[t] 是 t 之前留下来的指令数，跳到删掉的指令时自然落到后面第一条留下的指令
+        var newIndex = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            newIndex[i + 1] = newIndex[i] + (removed[i] ? 0 : 1);
+        }
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            if (removed[i]) {
+                continue;
+            }
+            long operand = operands[i];
+            if (targets[i] >= 0) {
+                operand = newIndex[targets[i]] - (k + 1);
+            }
+            code.set(k++, ops[i], operand);
+        }
+        code.truncate(k);
+    }
+}
@@ -0,0 +1,116 @@
+package c0.tokenizer;
+
+/**
+ * 关键字识别
+ *
+ * 先按长度、再按首字母分派，最后逐字符比较，不需要先把标识符变成 String
+ */
+final class Keywords {
+    private Keywords() {
+    }
+
+    /**
+     * buf[start, start + len) 是关键字时返回对应的 token 类型，否则返回 null
+     */
+    static TokenType match(char[] buf, int start, int len) {
+        switch (len) {
+        case 2:
+            switch (buf[start]) {
+            case 'f':
+                return rest(buf, start, "fn") ? TokenType.FN_KW : null;
+            case 'a':
+                return rest(buf, start, "as") ? TokenType.AS_KW : null;
+            case 'i':
+                return rest(buf, start, "if") ? TokenType.IF_KW : null;
+            default:
+                return null;
+            }
+        case 3:
+            switch (buf[start]) {
+            case 'l':
+                return rest(buf, start, "let") ? TokenType.LET_KW : null;
+            case 'i':
+                return rest(buf, start, "int") ? TokenType.ty : null;
+            default:
+                return null;
+            }
+        case 4:
+            switch (buf[start]) {
+            case 'e':
+                return rest(buf, start, "else") ? TokenType.ELSE_KW : null;
+            case 'v':
+                return rest(buf, start, "void") ? TokenType.ty : null;
+            default:
+                return null;
+            }
+        case 5:
+            switch (buf[start]) {
+            case 'c':
+                return rest(buf, start, "const") ? TokenType.CONST_KW : null;
+            case 'w':
+                return rest(buf, start, "while") ? TokenType.WHILE_KW : null;
+            case 'b':
+                return rest(buf, start, "break") ? TokenType.BREAK_KW : null;
+            default:
+                return null;
+            }
+        case 6:
+            switch (buf[start]) {
+            case 'r':
+                return rest(buf, start, "return") ? TokenType.RETURN_KW : null;
+            case 'd':
+                return rest(buf, start, "double") ? TokenType.ty : null;
+            default:
+                return null;
+            }
+        case 8:
+            return buf[start] == 'c' && rest(buf, start, "continue") ? TokenType.CONTINUE_KW : null;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * 关键字 token 的值，ty 类型的三个关键字需要按首字母区分
+     */
+    static String text(TokenType type, char first) {
+        switch (type) {
+        case FN_KW:
+            return "fn";
+        case LET_KW:
+            return "let";
+        case AS_KW:
+            return "as";
+        case CONST_KW:
+            return "const";
+        case WHILE_KW:
+            return "while";
+        case IF_KW:
+            return "if";
+        case ELSE_KW:
+            return "else";
+        case RETURN_KW:
+            return "return";
+        case BREAK_KW:
+            return "break";
+        case CONTINUE_KW:
+            return "continue";
+        case ty:
+            return first == 'i' ? "int" : first == 'v' ? "void" : "double";
+        default:
+            throw new Error("not a keyword: " + type);
+        }
+    }
+
+    /**
+     * 首字母已经比较过，比较剩下的字符
+     */
+    private static boolean rest(char[] buf, int start, String keyword) {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (buf[start + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package c0.tokenizer;
+
+/**
+ * 标识符名字表
+ *
+ * 同一个名字只生成一个 String，并提前算好 hashCode，
+ * 之后 Analyser 里各个 HashMap 查找用的都是缓存好的哈希值
+ */
+final class NameTable {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int size = 0;
+
+    /**
+     * 返回 buf[start, start + len) 对应的唯一 String
+     */
+    String intern(char[] buf, int start, int len) {
+        int h = 0;
+        for (int i = start; i < start + len; i++) {
+            h = 31 * h + buf[i];
+        }
+        int mask = names.length - 1;
+        int i = (h ^ (h >>> 16)) & mask;
+        String name;
+        while ((name = names[i]) != null) {
+            if (hashes[i] == h && matches(name, buf, start, len)) {
+                return name;
+            }
+            i = (i + 1) & mask;
+        }
+        name = new String(buf, start, len);
+        // 和上面算的 h 相同，这里只是让 String 把哈希值缓存下来
+        name.hashCode();
+        names[i] = name;
+        hashes[i] = h;
+        if (++size * 2 > names.length) {
+            grow();
+        }
+        return name;
+    }
+
+    private static boolean matches(String name, char[] buf, int start, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != buf[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        var oldNames = names;
+        var oldHashes = hashes;
+        names = new String[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int j = 0; j < oldNames.length; j++) {
+            if (oldNames[j] == null) {
+                continue;
+            }
+            int h = oldHashes[j];
+            int i = (h ^ (h >>> 16)) & mask;
+            while (names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = oldNames[j];
+            hashes[i] = h;
+        }
+    }
+}
@@ -6,53 +6,34 @@ import java.util.List;
 
 import org.apache.commons.math3.util.Pair;
 
+import c0.analyser.Builtin;
 import c0.error.CompileError;
-import c0.error.TokenizeError;
 
 public class Static {
 	
-	Tokenizer tokenizer;
+	TokenStream tokens;
 	
-	public Static(Tokenizer tokenizer) {
-        this.tokenizer = tokenizer;
+	public Static(TokenStream tokens) {
+        this.tokens = tokens;
     }
 	
-	/** 当前偷看的 token */
-    Token peekedToken = null;
+	/** 下一个要读取的 token 下标 */
+    int ptr = 0;
 	
 	/**
-     * 获取下一个 Token
+     * 获取下一个 token 的下标
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
-    }
-    
-    /**
-     * 查看下一个 Token
-     */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private int next() {
+        return ptr++;
     }
     
     /**
      * 如果下一个 token 的类型是 tt，则返回 true
      */
-    private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+    private boolean check(TokenType tt) {
+        return tokens.type(ptr) == tt;
     }
     
-    List<String> kufunction = new ArrayList<String>();
-    
     HashMap<Integer,String> global = new HashMap<>();
     
     List<Pair<String,Integer>> local = new ArrayList<>();
@@ -60,7 +41,6 @@ public class Static {
     @SuppressWarnings("unchecked")
 	public Pair<HashMap<Integer,String>,List<Pair<String,Integer>>> analyse() throws CompileError {
     	int i=0;
-    	init();
     	while(!check(TokenType.FN_KW)&&!check(TokenType.EOF))
     	{
     		if(check(TokenType.LET_KW)||check(TokenType.CONST_KW))
@@ -76,12 +56,12 @@ public class Static {
     		{
     			next();
     	    	int loc=0;
-    			String name1 = next().getValue().toString();
-    			while(!check(TokenType.L_BRACE))
+    			String name1 = tokens.text(next());
+    			while(!check(TokenType.L_BRACE)&&!check(TokenType.EOF))
     				next();
     			next();
     			int jishu=1;
-    			while(jishu!=0)
+    			while(jishu!=0&&!check(TokenType.EOF))
     			{
     				if(check(TokenType.L_BRACE))
     				{
@@ -95,14 +75,14 @@ public class Static {
     				}
     				else if(check(TokenType.IDENT))
     	    		{
-    	    			String name = next().getValue().toString();
+    	    			String name = tokens.text(next());
     	    			if(name.equals("putstr"))
     	    			{
     	    				next();
-    	    				global.put(i++, next().getValue().toString());
+    	    				global.put(i++, tokens.text(next()));
     	    				global.put(i++, "putstr");
     	    			}
-    	    			else if(kufunction.contains(name))
+    	    			else if(Builtin.isBuiltin(name))
     	    				global.put(i++,name);
     	    		}
     				else if(check(TokenType.CONST_KW)||check(TokenType.LET_KW))
@@ -123,16 +103,5 @@ public class Static {
 		Pair<HashMap<Integer,String>,List<Pair<String,Integer>>> pair = new Pair(global,local);
         return pair;
     }
-
-	private void init() {
-		kufunction.add("getint");
-		kufunction.add("getdouble");
-		kufunction.add("getchar");
-		kufunction.add("putint");
-		kufunction.add("putdouble");
-		kufunction.add("putchar");
-		kufunction.add("putstr");
-		kufunction.add("putln");
-	}
     
 }
@@ -1,7 +1,16 @@
 package c0.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import c0.util.Pos;
@@ -10,43 +19,153 @@ import c0.util.Pos;
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个输入放在一个 char 数组里
+    char[] buffer = new char[0];
+
+    int length = 0;
+
+    // 每一行第一个字符的偏移，最后一项是 EOF 所在的“行”
+    int[] lineStarts = new int[] { 0 };
+
+    int lineCount = 1;
 
     Scanner scanner;
     // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
-
-    Pos ptr = new Pos(0, 0);
+    int ptr = 0;
 
     boolean initialized = false;
 
-    Optional<Character> peeked = Optional.empty();
-
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    /**
+     * 直接使用已经读好的字符，buffer 的前 length 个字符是输入
+     */
+    public StringIter(char[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    public StringIter(String source) {
+        this(source.toCharArray(), source.length());
+    }
+
+    /**
+     * 用内存映射读入整个文件
+     */
+    public static StringIter open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(mapped);
+        }
+    }
+
+    /**
+     * 从输入流（比如 stdin）读入全部内容
+     */
+    public static StringIter read(InputStream input) throws IOException {
+        return decode(ByteBuffer.wrap(input.readAllBytes()));
+    }
+
+    private static StringIter decode(ByteBuffer bytes) throws CharacterCodingException {
+        // 和 Scanner 一样使用平台默认编码，非法字节替换掉
+        CharBuffer chars = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+        if (chars.hasArray() && chars.arrayOffset() == 0) {
+            return new StringIter(chars.array(), chars.limit());
+        }
+        var array = new char[chars.remaining()];
+        chars.get(array);
+        return new StringIter(array, array.length);
+    }
+
+    // 从这里开始其实是一个基于偏移的缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
-    // 1.缓冲区包括 \n
+    // 1.缓冲区包括 \n，并且最后一行也以 \n 结尾
     // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    // 3.行号和列号从 0 开始，只在需要 Pos 的时候由行首表算出来
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 一次读入全部内容，并且建立行首表
     public void readAll() {
         if (initialized) {
             return;
         }
-        while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+        if (scanner != null) {
+            var sb = new StringBuilder();
+            while (scanner.hasNext()) {
+                sb.append(scanner.nextLine()).append('\n');
+            }
+            length = sb.length();
+            buffer = new char[length];
+            sb.getChars(0, length, buffer, 0);
+        } else if (length > 0 && buffer[length - 1] != '\n') {
+            if (buffer.length == length) {
+                buffer = Arrays.copyOf(buffer, length + 1);
+            }
+            buffer[length++] = '\n';
         }
-        // todo:check read \n?
+        indexLines();
         initialized = true;
     }
 
+    private void indexLines() {
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * 偏移所在的位置
+     */
+    Pos posOf(int offset) {
+        int lo = 0, hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new Pos(lo, offset - lineStarts[lo]);
+    }
+
+    /**
+     * 整个输入缓冲区，词法分析器直接在上面扫描
+     */
+    char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * 输入的长度，buffer 中这之后的内容无效
+     */
+    int limit() {
+        return length;
+    }
+
+    /**
+     * 下一个要读取的字符的偏移
+     */
+    int offset() {
+        return ptr;
+    }
+
+    /**
+     * 把指针移动到 offset
+     */
+    void seek(int offset) {
+        ptr = offset;
+    }
+
     // 一个简单的总结
     // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
     // | = | = | = | = | = | = | = | = | = | = |
@@ -62,80 +181,59 @@ public class StringIter {
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (ptr >= length) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posOf(ptr + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posOf(ptr);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posOf(ptr - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
-        }
-    }
-
-    private char getNextChar() {
-        if (isEOF()) {
+        if (ptr >= length) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return buffer[ptr++];
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (ptr >= length) {
+            return 0;
         }
+        return buffer[ptr];
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return ptr >= length;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        ptr--;
     }
 
 }
@@ -0,0 +1,153 @@
+package c0.tokenizer;
+
+import java.util.Arrays;
+
+import c0.util.Pos;
+
+/**
+ * 紧凑的 token 序列
+ *
+ * 每个 token 只占几个并行数组里的一格：类型、起止偏移和值。
+ * UINT_LITERAL 和 CHAR_LITERAL 的值直接存在 values 里，
+ * 标识符、字符串和浮点数存在各自的表里，values 里放下标。
+ * 位置只在需要的时候由 StringIter 的行首表算出来。
+ *
+ * Static 和 Analyser 各自持有一个下标在上面前进，越过结尾时一直是 EOF。
+ */
+public class TokenStream {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private StringIter source;
+
+    private int size = 0;
+    private byte[] types = new byte[1024];
+    private int[] starts = new int[1024];
+    private int[] ends = new int[1024];
+    private int[] values = new int[1024];
+
+    /** 标识符和字符串 */
+    private String[] texts = new String[256];
+    private int textCount = 0;
+
+    /** 浮点数 */
+    private double[] doubles = new double[16];
+    private int doubleCount = 0;
+
+    TokenStream(StringIter source) {
+        this.source = source;
+    }
+
+    /**
+     * 添加一个 token，value 只对 UINT_LITERAL 和 CHAR_LITERAL 有意义
+     */
+    void add(TokenType type, int start, int end, int value) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        values[size] = value;
+        size++;
+    }
+
+    void addText(TokenType type, int start, int end, String text) {
+        if (textCount == texts.length) {
+            texts = Arrays.copyOf(texts, textCount * 2);
+        }
+        texts[textCount] = text;
+        add(type, start, end, textCount++);
+    }
+
+    void addDouble(int start, int end, double value) {
+        if (doubleCount == doubles.length) {
+            doubles = Arrays.copyOf(doubles, doubleCount * 2);
+        }
+        doubles[doubleCount] = value;
+        add(TokenType.DOUBLE_LITERAL, start, end, doubleCount++);
+    }
+
+    /**
+     * token 个数（包括 EOF）
+     */
+    public int size() {
+        return size;
+    }
+
+    private int clamp(int index) {
+        return index < size ? index : size - 1;
+    }
+
+    /**
+     * 第 index 个 token 的类型
+     */
+    public TokenType type(int index) {
+        return TYPES[types[clamp(index)]];
+    }
+
+    /**
+     * UINT_LITERAL 的值
+     */
+    public int intValue(int index) {
+        return values[clamp(index)];
+    }
+
+    /**
+     * DOUBLE_LITERAL 的值
+     */
+    public double doubleValue(int index) {
+        return doubles[values[clamp(index)]];
+    }
+
+    /**
+     * 和 Token.getValue() 相同的值
+     */
+    public Object value(int index) {
+        index = clamp(index);
+        var type = TYPES[types[index]];
+        switch (type) {
+        case UINT_LITERAL:
+            return values[index];
+        case CHAR_LITERAL:
+            return (char) values[index];
+        case DOUBLE_LITERAL:
+            return doubles[values[index]];
+        case IDENT:
+        case STRING_LITERAL:
+            return texts[values[index]];
+        default:
+            return Tokenizer.fixedValue(type, source.buffer(), starts[index]);
+        }
+    }
+
+    /**
+     * 值的字符串形式，等价于 getValue().toString()
+     */
+    public String text(int index) {
+        index = clamp(index);
+        var type = TYPES[types[index]];
+        if (type == TokenType.IDENT || type == TokenType.STRING_LITERAL) {
+            return texts[values[index]];
+        }
+        return value(index).toString();
+    }
+
+    public Pos startPos(int index) {
+        return source.posOf(starts[clamp(index)]);
+    }
+
+    public Pos endPos(int index) {
+        return source.posOf(ends[clamp(index)]);
+    }
+
+    /**
+     * 生成第 index 个 token 的对象，只在报错和输出 token 时使用
+     */
+    public Token get(int index) {
+        return new Token(type(index), value(index), startPos(index), endPos(index));
+    }
+}
@@ -3,14 +3,30 @@ package c0.tokenizer;
 import c0.error.TokenizeError;
 import c0.util.Pos;
 
-import java.math.BigDecimal;
-
 import c0.error.ErrorCode;
 
 public class Tokenizer {
 
     private StringIter it;
 
+    // 直接在 StringIter 的缓冲区上扫描，p 指向下一个要读取的字符
+    private char[] buf;
+    private int limit;
+    private int p;
+
+    // 刚扫描完的 token：起点和值
+    private int tokStart;
+    private int tokInt;
+    private double tokDouble;
+    private String tokText;
+
+    /** 同名标识符共用一个 String */
+    private NameTable names = new NameTable();
+
+    /** 10 的 0~22 次幂都能被 double 精确表示 */
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+            1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
     public Tokenizer(StringIter it) {
         this.it = it;
     }
@@ -23,274 +39,433 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        var type = scan();
+        return new Token(type, value(type), pos(tokStart), pos(p));
+    }
+
+    /**
+     * 一次读完全部 token，直接写进 TokenStream，不生成 Token 对象
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public TokenStream tokenizeAll() throws TokenizeError {
+        var stream = new TokenStream(it);
+        while (true) {
+            var type = scan();
+            switch (type) {
+            case UINT_LITERAL:
+            case CHAR_LITERAL:
+                stream.add(type, tokStart, p, tokInt);
+                break;
+            case DOUBLE_LITERAL:
+                stream.addDouble(tokStart, p, tokDouble);
+                break;
+            case IDENT:
+            case STRING_LITERAL:
+                stream.addText(type, tokStart, p, tokText);
+                break;
+            default:
+                stream.add(type, tokStart, p, 0);
+                break;
+            }
+            if (type == TokenType.EOF) {
+                return stream;
+            }
+        }
+    }
+
+    /**
+     * 扫描下一个 token，起点放在 tokStart，值放在 tokInt/tokDouble/tokText
+     */
+    private TokenType scan() throws TokenizeError {
         it.readAll();
+        buf = it.buffer();
+        limit = it.limit();
+        p = it.offset();
 
         // 跳过之前的所有空白字符
         skipSpaceCharacters();
 
-        if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+        TokenType type;
+        tokStart = p;
+        if (p >= limit) {
+            type = TokenType.EOF;
+        } else {
+            char peek = buf[p];
+            if (Character.isDigit(peek)) {
+                type = lexUInt();
+            } else if (Character.isAlphabetic(peek)) {
+                type = lexIdentOrKeyword();
+            } else if (peek == '"') {
+                type = lexString();
+            } else if (peek == '\'') {
+                type = lexChar();
+            } else {
+                type = lexOperatorOrUnknown();
+                // 运算符的起点记在最后一个字符上（和以前的 previousPos 一致）
+                tokStart = p - 1;
+            }
+        }
+        it.seek(p);
+        return type;
+    }
+
+    /**
+     * 刚扫描完的 token 的值
+     */
+    private Object value(TokenType type) {
+        switch (type) {
+        case UINT_LITERAL:
+            return tokInt;
+        case CHAR_LITERAL:
+            return (char) tokInt;
+        case DOUBLE_LITERAL:
+            return tokDouble;
+        case IDENT:
+        case STRING_LITERAL:
+            return tokText;
+        default:
+            return fixedValue(type, buf, tokStart);
+        }
+    }
+
+    /**
+     * 关键字、运算符和 EOF 的值只由类型决定（ty 需要看首字母）
+     */
+    static Object fixedValue(TokenType type, char[] buf, int start) {
+        switch (type) {
+        case PLUS:
+            return '+';
+        case MINUS:
+            return '-';
+        case MUL:
+            return '*';
+        case DIV:
+            return '/';
+        case ASSIGN:
+            return '=';
+        case SEMICOLON:
+            return ';';
+        case COMMA:
+            return ',';
+        case COLON:
+            return ':';
+        case L_PAREN:
+            return '(';
+        case R_PAREN:
+            return ')';
+        case L_BRACE:
+            return '{';
+        case R_BRACE:
+            return '}';
+        case GT:
+            return '>';
+        case LT:
+            return '<';
+        case ARROW:
+            return "->";
+        case EQ:
+            return "==";
+        case GE:
+            return ">=";
+        case LE:
+            return "<=";
+        case NEQ:
+            return "!=";
+        case EOF:
+            return "";
+        default:
+            return Keywords.text(type, buf[start]);
         }
+    }
+
+    private Pos pos(int offset) {
+        return it.posOf(offset);
+    }
+
+    /**
+     * 查看下一个字符，文件尾返回 0
+     */
+    private char peek() {
+        return p < limit ? buf[p] : 0;
+    }
 
-        char peek = it.peekChar();
-        if (Character.isDigit(peek)) {
-            return lexUInt();
-        } else if (Character.isAlphabetic(peek)) {
-            return lexIdentOrKeyword();
-        }else if(peek=='"') {
-        	return lexString();
-        }else if(peek=='\'') {
-        	return lexChar();
-        }else {
-            return lexOperatorOrUnknown();
+    private void skipDigits() {
+        while (p < limit && Character.isDigit(buf[p])) {
+            p++;
         }
     }
 
     //uint、double
-    private Token lexUInt() throws TokenizeError {
-        String s="";
-        Pos ppos=it.currentPos();
-        while(Character.isDigit(it.peekChar()))
-        	s=s+it.nextChar();
-        if(it.peekChar()=='.')
-        {
-        	s+=it.nextChar();
-        	if(!Character.isDigit(it.peekChar()))
-        		throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        	while(Character.isDigit(it.peekChar()))
-             	s=s+it.nextChar();
-        	if(it.peekChar()=='e'||it.peekChar()=='E')
-        	{
-        		s=s+it.nextChar();
-        		if(it.peekChar()=='+'||it.peekChar()=='-')
-        			s=s+it.nextChar();
-        		if(!Character.isDigit(it.peekChar()))
-            		throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-            	while(Character.isDigit(it.peekChar()))
-                 	s=s+it.nextChar();
-        	}
-            while(s.length()>1&&s.charAt(0)=='0')
-            	s=s.substring(1);
-            if(s.charAt(0)=='.')
-            	s='0'+s;
-            BigDecimal bd = new BigDecimal(s);  
-    	    double i =  Double.parseDouble(bd.toPlainString());
-            return new Token(TokenType.DOUBLE_LITERAL, i, ppos, it.currentPos());
+    private TokenType lexUInt() throws TokenizeError {
+        int start = p;
+        skipDigits();
+        if (peek() == '.') {
+            p++;
+            if (!Character.isDigit(peek()))
+                throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
+            skipDigits();
+            if (peek() == 'e' || peek() == 'E') {
+                p++;
+                if (peek() == '+' || peek() == '-')
+                    p++;
+                if (!Character.isDigit(peek()))
+                    throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
+                skipDigits();
+            }
+            tokDouble = parseDouble(start, p);
+            return TokenType.DOUBLE_LITERAL;
+        }
+        long value = 0;
+        for (int i = start; i < p; i++) {
+            value = value * 10 + Character.digit(buf[i], 10);
+            if (value > Integer.MAX_VALUE)
+                throw new TokenizeError(ErrorCode.IntegerOverflow, pos(start));
+        }
+        tokInt = (int) value;
+        return TokenType.UINT_LITERAL;
+    }
+
+    /**
+     * 解析 buf[start, end) 中的浮点数，格式已经由 lexUInt 检查过
+     */
+    private double parseDouble(int start, int end) {
+        // 有效数字不超过 2^53、十进制指数不超过 22 时可以直接算出正确舍入的结果
+        long mantissa = 0;
+        int digits = 0;
+        int exp = 0;
+        int i = start;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (c == 'e' || c == 'E') {
+                break;
+            }
+            int d = Character.digit(c, 10);
+            if (mantissa != 0 || d != 0) {
+                mantissa = mantissa * 10 + d;
+                digits++;
+            }
+            if (fraction) {
+                exp--;
+            }
+            if (digits > 15) {
+                return slowParseDouble(start, end);
+            }
+        }
+        if (i < end) {
+            i++;
+            boolean negative = buf[i] == '-';
+            if (buf[i] == '+' || buf[i] == '-') {
+                i++;
+            }
+            int e = 0;
+            for (; i < end; i++) {
+                e = e * 10 + Character.digit(buf[i], 10);
+                if (e > 1000) {
+                    return slowParseDouble(start, end);
+                }
+            }
+            exp += negative ? -e : e;
+        }
+        if (mantissa == 0) {
+            return 0.0;
+        }
+        if (exp < -22 || exp > 22) {
+            return slowParseDouble(start, end);
+        }
+        return exp < 0 ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+    }
+
+    private double slowParseDouble(int start, int end) {
+        var sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            // Double.parseDouble 只认 ASCII 数字
+            sb.append(Character.isDigit(c) ? (char) ('0' + Character.digit(c, 10)) : c);
         }
-        int k;
-        for(k=0;s.length()>1&&s.charAt(k)=='0';)
-        	s=s.substring(1);
-        int i=Integer.parseInt(s);
-        return new Token(TokenType.UINT_LITERAL, i, ppos, it.currentPos());
+        return Double.parseDouble(sb.toString());
     }
 
     //ident
-    private Token lexIdentOrKeyword() throws TokenizeError {
-    	String s="";
-        Pos ppos=it.currentPos();
-        while(Character.isAlphabetic(it.peekChar())||Character.isDigit(it.peekChar())||it.peekChar()=='_')
-        	s=s+it.nextChar();
-        switch (s) {
-        case "fn":
-        	return new Token(TokenType.FN_KW, "fn", ppos, it.currentPos());
-        case "let":
-        	return new Token(TokenType.LET_KW, "let", ppos, it.currentPos());
-        case "as":
-        	return new Token(TokenType.AS_KW, "as", ppos, it.currentPos());
-        case "const":
-        	return new Token(TokenType.CONST_KW, "const", ppos, it.currentPos());
-        case "while":
-        	return new Token(TokenType.WHILE_KW, "while", ppos, it.currentPos());
-        case "if":
-        	return new Token(TokenType.IF_KW, "if", ppos, it.currentPos());
-        case "else":
-        	return new Token(TokenType.ELSE_KW, "else", ppos, it.currentPos());
-        case "return":
-        	return new Token(TokenType.RETURN_KW, "return", ppos, it.currentPos());
-        case "break":
-        	return new Token(TokenType.BREAK_KW, "break", ppos, it.currentPos());
-        case "continue":
-        	return new Token(TokenType.CONTINUE_KW, "continue", ppos, it.currentPos());
-        case "int":
-        	return new Token(TokenType.ty, "int", ppos, it.currentPos());
-        case "void":
-        	return new Token(TokenType.ty, "void", ppos, it.currentPos());
-        case "double":
-        	return new Token(TokenType.ty, "double", ppos, it.currentPos());
-        default:
-        	return new Token(TokenType.IDENT, s, ppos, it.currentPos());
+    private TokenType lexIdentOrKeyword() throws TokenizeError {
+        int start = p;
+        while (p < limit && (Character.isAlphabetic(buf[p]) || Character.isDigit(buf[p]) || buf[p] == '_'))
+            p++;
+        // 先判断是不是关键字，是标识符时才从名字表里取 String
+        var type = Keywords.match(buf, start, p - start);
+        if (type != null) {
+            return type;
         }
+        tokText = names.intern(buf, start, p - start);
+        return TokenType.IDENT;
+    }
+
+    /**
+     * 转义字符，p 指向反斜杠之后的字符
+     */
+    private char lexEscape() throws TokenizeError {
+        char c = peek();
+        if (c != 'n' && c != 't' && c != '\\' && c != '"' && c != '\'' && c != 'r')
+            throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
+        p++;
+        if (c == 'n')
+            return '\n';
+        else if (c == 't')
+            return '\t';
+        else if (c == 'r')
+            return '\r';
+        return c;
     }
 
     //字符
-    private Token lexChar() throws TokenizeError{
+    private TokenType lexChar() throws TokenizeError{
     	char c;
-        Pos ppos=it.currentPos();
-        it.nextChar();
-        if(it.peekChar()!='\\')
-        	c=it.nextChar();
+        int start = p;
+        p++;
+        if (peek() != '\\')
+        	c = p < limit ? buf[p++] : 0;
         else
         {
-        	it.nextChar();
-        	if(it.peekChar()!='n'&&it.peekChar()!='t'&&it.peekChar()!='\\'&&it.peekChar()!='"'&&it.peekChar()!='\''&&it.peekChar()!='r')
-        		throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        	else if(it.peekChar()=='n')
-    		{
-    			c='\n';
-    			it.nextChar();
-    		}
-    		else if(it.peekChar()=='t')
-        	{
-    			c='\t';
-    			it.nextChar();
-        	}
-    		else if(it.peekChar()=='r')
-        	{
-    			c='\r';
-    			it.nextChar();
-        	}
-    		else
-    			c=it.nextChar();
+        	p++;
+        	c = lexEscape();
         }
-        if(it.peekChar()!='\'')
-        	throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        it.nextChar();	
-        return new Token(TokenType.CHAR_LITERAL, c, ppos, it.currentPos());
+        if (peek() != '\'')
+        	throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
+        p++;
+        tokInt = c;
+        return TokenType.CHAR_LITERAL;
     }
-    
+
     //字符串
-    private Token lexString() throws TokenizeError{
-    	String s="";
-        Pos ppos=it.currentPos();
-        it.nextChar();
-        while(it.peekChar()!='"')
+    private TokenType lexString() throws TokenizeError{
+        int start = p;
+        p++;
+        // 没有转义时直接从缓冲区切出来，有转义才用 StringBuilder 拼
+        StringBuilder sb = null;
+        int from = p;
+        while (true)
         {
-        	if(it.peekChar()=='\\')
+        	if (p >= limit)
+        		throw new TokenizeError(ErrorCode.EOF, pos(start));
+        	char c = buf[p];
+        	if (c == '"')
+        		break;
+        	if (c == '\\')
         	{
-        		it.nextChar();
-        		if(it.peekChar()!='n'&&it.peekChar()!='t'&&it.peekChar()!='\\'&&it.peekChar()!='"'&&it.peekChar()!='\''&&it.peekChar()!='r')
-            		throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        		else if(it.peekChar()=='n')
-        		{
-        			s+='\n';
-        			it.nextChar();
-        		}
-        		else if(it.peekChar()=='t')
-            	{
-        			s+='\t';
-        			it.nextChar();
-            	}
-        		else if(it.peekChar()=='r')
-            	{
-        			s+='\r';
-        			it.nextChar();
-            	}
-        		else
-        			s+=it.nextChar();
+        		if (sb == null)
+        			sb = new StringBuilder();
+        		sb.append(buf, from, p - from);
+        		p++;
+        		sb.append(lexEscape());
+        		from = p;
         		continue;
-        	}	
-        	s=s+it.nextChar();
-        }	
-        it.nextChar();	
-        return new Token(TokenType.STRING_LITERAL, s, ppos, it.currentPos());
+        	}
+        	p++;
+        }
+        tokText = sb == null ? new String(buf, from, p - from) : sb.append(buf, from, p - from).toString();
+        p++;
+        return TokenType.STRING_LITERAL;
     }
-    
+
     //注释
     private void lexComment() throws TokenizeError{
-    	String s="";
-        Pos ppos=it.currentPos();
-        while(it.peekChar()!='\n')
-        	s=s+it.nextChar();	
+        while (p < limit && buf[p] != '\n')
+        	p++;
         //return new Token(TokenType.COMMENT, s, ppos, it.currentPos());
     }
-    
+
     //其它
-    private Token lexOperatorOrUnknown() throws TokenizeError {
-        switch (it.nextChar()) {
+    private TokenType lexOperatorOrUnknown() throws TokenizeError {
+        switch (buf[p++]) {
             case '+':
-                return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
+                return TokenType.PLUS;
 
             case '-':
-            	if(it.peekChar()=='>')
+            	if(peek()=='>')
             	{
-            		it.nextChar();
-            		return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
-            	}	
-            	return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
+            		p++;
+            		return TokenType.ARROW;
+            	}
+            	return TokenType.MINUS;
 
             case '*':
-            	return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
+            	return TokenType.MUL;
 
             case '/':
-            	if(it.peekChar()=='/')
+            	if(peek()=='/')
             	{
-            		it.nextChar();
+            		p++;
             		lexComment();
             	}
-            	return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
-            	
+            	return TokenType.DIV;
+
             case '=':
-            	if(it.peekChar()=='=')
+            	if(peek()=='=')
             	{
-            		it.nextChar();
-            		return new Token(TokenType.EQ, "==", it.previousPos(), it.currentPos());
+            		p++;
+            		return TokenType.EQ;
             	}
-                return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
-                
+                return TokenType.ASSIGN;
+
             case ';':
-                return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
-                
+                return TokenType.SEMICOLON;
+
             case ',':
-                return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
-                
+                return TokenType.COMMA;
+
             case ':':
-                return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
-                
+                return TokenType.COLON;
+
             case '(':
-                return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
-                
+                return TokenType.L_PAREN;
+
             case ')':
-                return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
-                
+                return TokenType.R_PAREN;
+
             case '{':
-                return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
-                
+                return TokenType.L_BRACE;
+
             case '}':
-                return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
-                
+                return TokenType.R_BRACE;
+
             case '>':
-            	if(it.peekChar()=='=')
+            	if(peek()=='=')
             	{
-            		it.nextChar();
-            		return new Token(TokenType.GE, ">=", it.previousPos(), it.currentPos());
+            		p++;
+            		return TokenType.GE;
             	}
-                return new Token(TokenType.GT, '>', it.previousPos(), it.currentPos());
-                
+                return TokenType.GT;
+
             case '<':
-            	if(it.peekChar()=='=')
+            	if(peek()=='=')
             	{
-            		it.nextChar();
-            		return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
+            		p++;
+            		return TokenType.LE;
             	}
-                return new Token(TokenType.LT, '<', it.previousPos(), it.currentPos());
-                
+                return TokenType.LT;
+
             case '!':
-            	if(it.peekChar()=='=')
+            	if(peek()=='=')
             	{
-            		it.nextChar();
-            		return new Token(TokenType.NEQ, "!=", it.previousPos(), it.currentPos());
+            		p++;
+            		return TokenType.NEQ;
             	}
-            	throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            	throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
 
             default:
                 // 不认识这个输入，摸了
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                throw new TokenizeError(ErrorCode.InvalidInput, pos(p - 1));
         }
     }
 
     private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
+        while (p < limit && Character.isWhitespace(buf[p])) {
+            p++;
         }
     }
 }
@@ -0,0 +1,49 @@
+package c0.util;
+
+/**
+ * 文本 o0 里的十六进制数
+ *
+ * 每两位一组，组后面跟一个空格，直接写进调用者给的 StringBuilder
+ */
+public final class HexWriter {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private HexWriter() {
+    }
+
+    /**
+     * 4 字节数：至少 8 位，前 4 组后面各跟一个空格，超出 32 位的部分接在最后
+     *
+     * 负数只取低 32 位
+     */
+    public static StringBuilder hex32(StringBuilder sb, long value) {
+        int digits = value < 0 ? 8 : Math.max(8, (67 - Long.numberOfLeadingZeros(value)) / 4);
+        for (int i = 0; i < digits; i++) {
+            sb.append(DIGITS[(int) (value >>> ((digits - 1 - i) * 4)) & 0xf]);
+            if (i < 8 && (i & 1) == 1) {
+                sb.append(' ');
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * 8 字节数：16 位，8 组后面各跟一个空格
+     */
+    public static StringBuilder hex64(StringBuilder sb, long value) {
+        for (int shift = 60; shift >= 0; shift -= 8) {
+            sb.append(DIGITS[(int) (value >>> shift) & 0xf]);
+            sb.append(DIGITS[(int) (value >>> (shift - 4)) & 0xf]);
+            sb.append(' ');
+        }
+        return sb;
+    }
+
+    public static String hex32(long value) {
+        return hex32(new StringBuilder(12), value).toString();
+    }
+
+    public static String hex64(long value) {
+        return hex64(new StringBuilder(24), value).toString();
+    }
+}
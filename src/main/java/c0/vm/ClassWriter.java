@@ -0,0 +1,399 @@
+package c0.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 写出一个最简单的 class 文件：常量池、没有字段、几个方法，给 JIT 用
+ *
+ * 版本号用 49（Java 5），不需要 StackMapTable，由 JVM 推导类型校验。
+ */
+final class ClassWriter {
+    private static final int MAGIC = 0xcafebabe;
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // 用到的 JVM 指令
+    static final int ICONST_0 = 0x03;
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0a;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int LALOAD = 0x2f;
+    static final int LSTORE = 0x37;
+    static final int LASTORE = 0x50;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int DADD = 0x63;
+    static final int LSUB = 0x65;
+    static final int DSUB = 0x67;
+    static final int LMUL = 0x69;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int LNEG = 0x75;
+    static final int DNEG = 0x77;
+    static final int LSHL = 0x79;
+    static final int LSHR = 0x7b;
+    static final int LUSHR = 0x7d;
+    static final int LAND = 0x7f;
+    static final int LOR = 0x81;
+    static final int LXOR = 0x83;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int L2D = 0x8a;
+    static final int D2L = 0x8f;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGT = 0x9d;
+    static final int GOTO = 0xa7;
+    static final int LOOKUPSWITCH = 0xab;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+    static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    /** 下一个常量的下标，long 占两个 */
+    private int poolCount = 1;
+    /** 已经加进常量池的常量，避免重复 */
+    private final Map<String, Integer> constants = new HashMap<>();
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    /**
+     * @param name       类名，内部形式（a/b/C）
+     * @param superName  父类
+     * @param interfaces 实现的接口
+     */
+    ClassWriter(String name, String superName, String... interfaces) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classRef(interfaces[i]);
+        }
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, 1, () -> pool.writeUTF(value));
+    }
+
+    int classRef(String name) {
+        int index = utf8(name);
+        return constant("C" + name, CONSTANT_CLASS, 1, () -> pool.writeShort(index));
+    }
+
+    int string(String value) {
+        int index = utf8(value);
+        return constant("S" + value, CONSTANT_STRING, 1, () -> pool.writeShort(index));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, 1, () -> pool.writeInt(value));
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, CONSTANT_LONG, 2, () -> pool.writeLong(value));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ' ' + descriptor, CONSTANT_NAME_AND_TYPE, 1, () -> {
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+        });
+        return constant("M" + owner + '.' + name + descriptor, CONSTANT_METHODREF, 1, () -> {
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, int tag, int size, PoolWriter writer) {
+        var index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(tag);
+            writer.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) {
+            throw new IllegalStateException("constant pool too large");
+        }
+        constants.put(key, index);
+        return index;
+    }
+
+    /**
+     * 添加一个方法，code 的跳转已经全部绑定
+     */
+    void addMethod(int access, String name, String descriptor, Bytecode code, int maxStack, int maxLocals) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        var bytes = code.toByteArray();
+        try {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+            methods.writeShort(codeIndex);
+            methods.writeInt(12 + bytes.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+            methods.writeShort(0); // exception_table
+            methods.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码，跳转可以先指向标号，toByteArray 时填上偏移
+     */
+    static final class Bytecode {
+        private byte[] code = new byte[256];
+        private int length = 0;
+
+        /** 标号的位置，还没绑定时是 -1 */
+        private int[] labels = new int[16];
+        private int labelCount = 0;
+
+        /** 要填的偏移：偏移所在的位置、跳转指令的位置、标号，偏移是 2 字节还是 4 字节 */
+        private int[] fixupAt = new int[16];
+        private int[] fixupFrom = new int[16];
+        private int[] fixupLabel = new int[16];
+        private boolean[] fixupWide = new boolean[16];
+        private int fixupCount = 0;
+
+        int length() {
+            return length;
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void bind(int label) {
+            labels[label] = length;
+        }
+
+        boolean isBound(int label) {
+            return labels[label] != -1;
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        /** 带一个常量池下标的指令 */
+        void op(int opcode, int index) {
+            u1(opcode);
+            u2(index);
+        }
+
+        /** iload/lload/aload/lstore，下标超过 255 时加 wide */
+        void local(int opcode, int slot) {
+            if (slot > 0xff) {
+                u1(WIDE);
+                u1(opcode);
+                u2(slot);
+            } else {
+                u1(opcode);
+                u1(slot);
+            }
+        }
+
+        void iconst(ClassWriter writer, int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                ldc(writer.integer(value));
+            }
+        }
+
+        void lconst(ClassWriter writer, long value) {
+            if (value == 0 || value == 1) {
+                u1(LCONST_0 + (int) value);
+            } else {
+                op(LDC2_W, writer.longConstant(value));
+            }
+        }
+
+        void ldc(int index) {
+            if (index > 0xff) {
+                op(LDC_W, index);
+            } else {
+                u1(LDC);
+                u1(index);
+            }
+        }
+
+        void jump(int opcode, int label) {
+            int from = length;
+            u1(opcode);
+            fixup(length, from, label, false);
+            u2(0);
+        }
+
+        /**
+         * lookupswitch，keys 从小到大
+         */
+        void lookupSwitch(int[] keys, int[] targets, int defaultLabel) {
+            int from = length;
+            u1(LOOKUPSWITCH);
+            while (length % 4 != 0) {
+                u1(0);
+            }
+            fixup(length, from, defaultLabel, true);
+            u4(0);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                fixup(length, from, targets[i], true);
+                u4(0);
+            }
+        }
+
+        private void fixup(int at, int from, int label, boolean wide) {
+            if (fixupCount == fixupAt.length) {
+                int n = fixupCount * 2;
+                fixupAt = Arrays.copyOf(fixupAt, n);
+                fixupFrom = Arrays.copyOf(fixupFrom, n);
+                fixupLabel = Arrays.copyOf(fixupLabel, n);
+                fixupWide = Arrays.copyOf(fixupWide, n);
+            }
+            fixupAt[fixupCount] = at;
+            fixupFrom[fixupCount] = from;
+            fixupLabel[fixupCount] = label;
+            fixupWide[fixupCount] = wide;
+            fixupCount++;
+        }
+
+        void u1(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        /**
+         * @throws IllegalStateException 有没绑定的标号，或者跳转超过 2 字节偏移的范围
+         */
+        byte[] toByteArray() {
+            for (int i = 0; i < fixupCount; i++) {
+                int target = labels[fixupLabel[i]];
+                if (target == -1) {
+                    throw new IllegalStateException("label " + fixupLabel[i] + " is not bound");
+                }
+                int offset = target - fixupFrom[i];
+                int at = fixupAt[i];
+                if (fixupWide[i]) {
+                    code[at] = (byte) (offset >> 24);
+                    code[at + 1] = (byte) (offset >> 16);
+                    code[at + 2] = (byte) (offset >> 8);
+                    code[at + 3] = (byte) offset;
+                } else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new IllegalStateException("branch offset " + offset + " too large");
+                    }
+                    code[at] = (byte) (offset >> 8);
+                    code[at + 1] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(code, length);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package c0.vm;
+
+import c0.instruction.CodeBuffer;
+import c0.instruction.Opcode;
+
+/**
+ * 预解码后的一个函数，给 Navm 执行
+ *
+ * 操作码放在 int[] 里，navm 本来的指令就用它的字节码，下面的常量和 Opcode.getCode() 相同；
+ * 另外还有几条把常见的指令序列合并成一条的超级指令。
+ * 合并后的指令放在序列第一条的位置，后面几条原样留着，执行完跳过它们，
+ * 所以下标和 CodeBuffer 里一一对应，跳转的目标和报错时的指令下标都不用换算。
+ * 超级指令不能直接完成时（地址越界、栈空之类）只执行第一条，接着执行后面原来的指令，
+ * 所以出错的位置和信息都和不合并时一样。
+ * 序列中间的指令是跳转目标时不合并。
+ *
+ * 跳转的操作数换成绝对下标，越界的跳转换成 BAD_BRANCH，执行到时才报错。
+ * 最后多放一条 END，执行到函数末尾时不用检查下标。
+ */
+final class Code {
+    static final int NOP = 0x00;
+    static final int PUSH = 0x01;
+    static final int POP = 0x02;
+    static final int POPN = 0x03;
+    static final int DUP = 0x04;
+    static final int LOCA = 0x0a;
+    static final int ARGA = 0x0b;
+    static final int GLOBA = 0x0c;
+    static final int LOAD8 = 0x10;
+    static final int LOAD16 = 0x11;
+    static final int LOAD32 = 0x12;
+    static final int LOAD64 = 0x13;
+    static final int STORE8 = 0x14;
+    static final int STORE16 = 0x15;
+    static final int STORE32 = 0x16;
+    static final int STORE64 = 0x17;
+    static final int ALLOC = 0x18;
+    static final int FREE = 0x19;
+    static final int STACKALLOC = 0x1a;
+    static final int ADD_I = 0x20;
+    static final int SUB_I = 0x21;
+    static final int MUL_I = 0x22;
+    static final int DIV_I = 0x23;
+    static final int ADD_F = 0x24;
+    static final int SUB_F = 0x25;
+    static final int MUL_F = 0x26;
+    static final int DIV_F = 0x27;
+    static final int DIV_U = 0x28;
+    static final int SHL = 0x29;
+    static final int SHR = 0x2a;
+    static final int AND = 0x2b;
+    static final int OR = 0x2c;
+    static final int XOR = 0x2d;
+    static final int NOT = 0x2e;
+    static final int CMP_I = 0x30;
+    static final int CMP_U = 0x31;
+    static final int CMP_F = 0x32;
+    static final int NEG_I = 0x34;
+    static final int NEG_F = 0x35;
+    static final int ITOF = 0x36;
+    static final int FTOI = 0x37;
+    static final int SHRL = 0x38;
+    static final int SET_LT = 0x39;
+    static final int SET_GT = 0x3a;
+    static final int BR = 0x41;
+    static final int BR_FALSE = 0x42;
+    static final int BR_TRUE = 0x43;
+    static final int CALL = 0x48;
+    static final int RET = 0x49;
+    static final int CALLNAME = 0x4a;
+    static final int SCAN_I = 0x50;
+    static final int SCAN_C = 0x51;
+    static final int SCAN_F = 0x52;
+    static final int PRINT_I = 0x54;
+    static final int PRINT_C = 0x55;
+    static final int PRINT_F = 0x56;
+    static final int PRINT_S = 0x57;
+    static final int PRINTLN = 0x58;
+    static final int PANIC = 0xfe;
+
+    // 超级指令
+    /** loca n; load.64 */
+    static final int LOAD_LOCAL = 0x60;
+    /** arga n; load.64 */
+    static final int LOAD_ARG = 0x61;
+    /** globa n; load.64（或者 push 数据区地址; load.64），操作数是地址 */
+    static final int LOAD_GLOBAL = 0x62;
+    /** push c; add.i */
+    static final int ADD_IMM = 0x63;
+    /** push c; sub.i */
+    static final int SUB_IMM = 0x64;
+    /** push c; mul.i */
+    static final int MUL_IMM = 0x65;
+    /** cmp.i; set.lt; br.true，小于时跳转 */
+    static final int BR_LT = 0x68;
+    /** cmp.i; set.lt; br.false */
+    static final int BR_GE = 0x69;
+    /** cmp.i; set.gt; br.true */
+    static final int BR_GT = 0x6a;
+    /** cmp.i; set.gt; br.false */
+    static final int BR_LE = 0x6b;
+    /** cmp.i; br.false */
+    static final int BR_EQ = 0x6c;
+    /** cmp.i; br.true */
+    static final int BR_NE = 0x6d;
+
+    /** 向后跳的 br，也就是循环的回边，JIT 在这里数次数 */
+    static final int LOOP = 0x70;
+
+    /** 函数末尾之后 */
+    static final int END = 0x100;
+    /** 跳出函数范围的跳转，操作数是目标下标 */
+    static final int BAD_BRANCH = 0x101;
+
+    final int[] ops;
+    final long[] operands;
+    /** 原来的指令条数，END 的下标 */
+    final int size;
+
+    private Code(int size) {
+        this.size = size;
+        this.ops = new int[size + 1];
+        this.operands = new long[size + 1];
+    }
+
+    /**
+     * @param globalAddresses 每个全局变量的地址，globa 直接换成 push 地址
+     * @param fuse            是否合并超级指令，profile 时每条指令要单独计数，不合并
+     */
+    static Code decode(CodeBuffer buffer, long[] globalAddresses, boolean fuse) {
+        int size = buffer.size();
+        var code = new Code(size);
+        var isTarget = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            var op = buffer.opcode(i);
+            long x = buffer.operand(i);
+            int decoded = op.getCode();
+            if (op == Opcode.BR || op == Opcode.BR_FALSE || op == Opcode.BR_TRUE) {
+                x += i + 1;
+                if (x < 0 || x > size) {
+                    decoded = BAD_BRANCH;
+                } else {
+                    isTarget[(int) x] = true;
+                    if (op == Opcode.BR && x <= i) {
+                        decoded = LOOP;
+                    }
+                }
+            } else if (op == Opcode.GLOBA && x >= 0 && x < globalAddresses.length) {
+                decoded = PUSH;
+                x = globalAddresses[(int) x];
+            }
+            code.ops[i] = decoded;
+            code.operands[i] = x;
+        }
+        code.ops[size] = END;
+        if (fuse) {
+            code.fuse(isTarget);
+        }
+        return code;
+    }
+
+    private void fuse(boolean[] isTarget) {
+        for (int i = 0; i + 1 < size; i++) {
+            int op = ops[i];
+            int next = ops[i + 1];
+            if (isTarget[i + 1]) {
+                continue;
+            }
+            if (next == LOAD64 && op == LOCA) {
+                ops[i] = LOAD_LOCAL;
+            } else if (next == LOAD64 && op == ARGA) {
+                ops[i] = LOAD_ARG;
+            } else if (next == LOAD64 && op == PUSH && operands[i] >= Navm.DATA_BASE) {
+                // globa 已经换成了 push 地址
+                ops[i] = LOAD_GLOBAL;
+            } else if (op == PUSH && next == ADD_I) {
+                ops[i] = ADD_IMM;
+            } else if (op == PUSH && next == SUB_I) {
+                ops[i] = SUB_IMM;
+            } else if (op == PUSH && next == MUL_I) {
+                ops[i] = MUL_IMM;
+            } else if (op == CMP_I) {
+                fuseCompare(i, isTarget);
+            }
+        }
+    }
+
+    private void fuseCompare(int i, boolean[] isTarget) {
+        int next = ops[i + 1];
+        if (next == BR_TRUE || next == BR_FALSE) {
+            ops[i] = next == BR_TRUE ? BR_NE : BR_EQ;
+            operands[i] = operands[i + 1];
+            return;
+        }
+        if ((next == SET_LT || next == SET_GT) && i + 2 < size && !isTarget[i + 2]) {
+            int branch = ops[i + 2];
+            if (branch != BR_TRUE && branch != BR_FALSE) {
+                return;
+            }
+            if (next == SET_LT) {
+                ops[i] = branch == BR_TRUE ? BR_LT : BR_GE;
+            } else {
+                ops[i] = branch == BR_TRUE ? BR_GT : BR_LE;
+            }
+            operands[i] = operands[i + 2];
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package c0.vm;
+
+/**
+ * JIT 编译好的一个函数，由 JitCompiler 生成的隐藏类实现
+ */
+interface CompiledCode {
+    /**
+     * 从 entry 开始执行到 ret
+     *
+     * 调用前函数已经 enter，参数和局部变量在 stack[bp] 开始的 slot 里；
+     * ret 时把返回值写回 stack[bp] 开始的 slot，弹出帧由 Navm 完成。
+     *
+     * @param entry 0 或者一个循环开头的指令下标（解释执行到一半时转进来）
+     */
+    void run(Navm vm, long[] stack, int bp, int entry);
+}
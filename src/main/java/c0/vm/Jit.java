@@ -0,0 +1,118 @@
+package c0.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+
+import c0.analyser.Builtin;
+import c0.instruction.Function;
+
+/**
+ * Navm 的 JIT：数每个函数被调用和向后跳的次数，超过阈值时用 JitCompiler 编译成隐藏类
+ *
+ * 编译是同步的，在解释器里超过阈值的那一次调用或者跳转时完成。
+ * 不能编译的函数（或者定义隐藏类失败）记下来，以后一直解释执行。
+ */
+final class Jit {
+    /** 调用多少次后编译 */
+    static final int CALL_THRESHOLD = 1000;
+    /** 向后跳多少次后编译，然后从循环开头转进编译好的代码 */
+    static final int LOOP_THRESHOLD = 10000;
+
+    private final JitCompiler compiler;
+    private final int callThreshold;
+    private final int loopThreshold;
+
+    private final int[] calls;
+    private final int[] loops;
+    private final CompiledCode[] compiled;
+    private final int[] frameSlots;
+    private final int[][] entries;
+    private final boolean[] failed;
+
+    /**
+     * @param functions       模块里的所有函数
+     * @param builtins        全局变量下标 -> 标准库函数
+     * @param globalAddresses 每个全局变量的地址
+     * @param globalsSize     全局变量占的字节数
+     */
+    Jit(Function[] functions, Builtin[] builtins, long[] globalAddresses, int globalsSize, int callThreshold,
+            int loopThreshold) {
+        this.compiler = new JitCompiler(functions, builtins, globalAddresses, globalsSize);
+        this.callThreshold = callThreshold;
+        this.loopThreshold = loopThreshold;
+        int n = functions.length;
+        calls = new int[n];
+        loops = new int[n];
+        compiled = new CompiledCode[n];
+        frameSlots = new int[n];
+        entries = new int[n][];
+        failed = new boolean[n];
+        // _start 只执行一次，不编译
+        if (n > 0) {
+            failed[0] = true;
+        }
+    }
+
+    /**
+     * 调用了一次 fn，已经编译好时返回 true
+     */
+    boolean countCall(int fn) {
+        if (compiled[fn] != null) {
+            return true;
+        }
+        if (failed[fn] || ++calls[fn] < callThreshold) {
+            return false;
+        }
+        return compile(fn);
+    }
+
+    /**
+     * fn 里向后跳了一次，已经编译好时返回 true
+     */
+    boolean countLoop(int fn) {
+        if (compiled[fn] != null) {
+            return true;
+        }
+        if (failed[fn] || ++loops[fn] < loopThreshold) {
+            return false;
+        }
+        return compile(fn);
+    }
+
+    CompiledCode get(int fn) {
+        return compiled[fn];
+    }
+
+    /**
+     * 编译好的代码能不能从第 ip 条指令开始执行
+     */
+    boolean hasEntry(int fn, int ip) {
+        return ip == 0 || Arrays.binarySearch(entries[fn], ip) >= 0;
+    }
+
+    /**
+     * 执行时从 bp 开始要用到几个 slot
+     */
+    int frameSlots(int fn) {
+        return frameSlots[fn];
+    }
+
+    private boolean compile(int fn) {
+        var result = compiler.compile(fn);
+        if (result == null) {
+            failed[fn] = true;
+            return false;
+        }
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(result.getBytes(), true);
+            compiled[fn] = (CompiledCode) lookup.lookupClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // 生成的类没通过校验之类，留在解释器里
+            failed[fn] = true;
+            return false;
+        }
+        frameSlots[fn] = result.getFrameSlots();
+        entries[fn] = result.getEntries();
+        return true;
+    }
+}
@@ -0,0 +1,968 @@
+package c0.vm;
+
+import java.util.Arrays;
+
+import c0.analyser.Builtin;
+import c0.instruction.CodeBuffer;
+import c0.instruction.Function;
+import c0.instruction.Opcode;
+
+/**
+ * 把一个函数编译成 JVM 字节码：一个实现 CompiledCode 的类
+ *
+ * 先做一遍抽象解释，算出每条指令执行前栈上每个值是什么：运行时才知道的值、常量、本帧某个 slot 的地址。
+ * 参数、局部变量和操作数栈上的值都放在 JVM 的 long 局部变量里（frame slot s 对应 stack[bp + s]），
+ * loca/arga + load.64/store.64 直接读写局部变量，交给 HotSpot 分配寄存器。
+ * 地址只能用来 load.64/store.64，被当成普通的值用了（打印、传参、参与运算）就不编译，
+ * 这样解释器看不到 JVM 局部变量里的值也没关系。
+ *
+ * 调用其他函数前把整个帧写回 stack，被调用的函数看到的内存和解释执行时完全一样，
+ * 返回后再读回参数、局部变量和返回值（栈上的常量和地址编译时就知道，不用读）。
+ * 向后跳的 br 的目标都是入口，解释器执行到一半时从内存读入帧再跳进来。
+ *
+ * 不支持的指令（load.8、alloc 之类）、栈深度对不上、跳出函数的 br 等情况返回 null，这个函数留在解释器里。
+ */
+final class JitCompiler {
+    /** 生成的类名，defineHiddenClass 时会加上后缀 */
+    private static final String CLASS_NAME = "c0/vm/JitFunction";
+    private static final String NAVM = "c0/vm/Navm";
+    private static final String RUN_DESCRIPTOR = "(Lc0/vm/Navm;[JII)V";
+
+    // run 的局部变量：this、vm、stack、bp、entry，后面是 frame slot，每个占两个
+    private static final int VM = 1;
+    private static final int STACK = 2;
+    private static final int BP = 3;
+    private static final int ENTRY = 4;
+    private static final int FIRST_SLOT = 5;
+
+    /** 生成的代码在 JVM 操作数栈上最多放几个字 */
+    private static final int MAX_STACK = 8;
+    /** 操作数栈的最大深度，超过时不编译 */
+    private static final int MAX_DEPTH = 256;
+    /** 超过这个大小的方法 HotSpot 不编译（HugeMethodLimit），不如留在解释器里 */
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    // 抽象解释时栈上的值
+    /** 运行时才知道 */
+    private static final int VALUE = 0;
+    /** 常量，也已经放在局部变量里 */
+    private static final int CONSTANT = 1;
+    /** 本帧 slot 的地址，不放在局部变量里 */
+    private static final int ADDRESS = 2;
+
+    /** 编译结果 */
+    static final class Result {
+        private final byte[] bytes;
+        private final int frameSlots;
+        private final int[] entries;
+
+        Result(byte[] bytes, int frameSlots, int[] entries) {
+            this.bytes = bytes;
+            this.frameSlots = frameSlots;
+            this.entries = entries;
+        }
+
+        /** class 文件 */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        /** 从 bp 开始最多用到几个 slot，栈上没有这么多空间时不能执行 */
+        int getFrameSlots() {
+            return frameSlots;
+        }
+
+        /** 除了 0 以外可以进入的指令下标，从小到大 */
+        int[] getEntries() {
+            return entries;
+        }
+    }
+
+    /** 不能编译 */
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /** 抽象解释时某条指令执行前的栈 */
+    private static final class State {
+        int depth;
+        int[] kinds;
+        long[] values;
+
+        State(int capacity) {
+            kinds = new int[capacity];
+            values = new long[capacity];
+        }
+
+        State copy() {
+            var state = new State(kinds.length);
+            state.depth = depth;
+            System.arraycopy(kinds, 0, state.kinds, 0, depth);
+            System.arraycopy(values, 0, state.values, 0, depth);
+            return state;
+        }
+
+        void push(int kind, long value) {
+            if (depth == MAX_DEPTH) {
+                throw new Unsupported("operand stack too deep");
+            }
+            if (depth == kinds.length) {
+                kinds = Arrays.copyOf(kinds, depth * 2);
+                values = Arrays.copyOf(values, depth * 2);
+            }
+            kinds[depth] = kind;
+            values[depth] = value;
+            depth++;
+        }
+
+        /**
+         * 合并从另一条路径来的栈，有变化时返回 true
+         *
+         * 常量不同时变成 VALUE；地址只能和同一个地址合并
+         */
+        boolean merge(State other) {
+            if (depth != other.depth) {
+                throw new Unsupported("stack depth differs at a branch target");
+            }
+            boolean changed = false;
+            for (int d = 0; d < depth; d++) {
+                int kind = kinds[d];
+                int otherKind = other.kinds[d];
+                if (kind == otherKind && values[d] == other.values[d] || kind == VALUE && otherKind != ADDRESS) {
+                    continue;
+                }
+                if (kind == ADDRESS || otherKind == ADDRESS) {
+                    throw new Unsupported("address differs at a branch target");
+                }
+                kinds[d] = VALUE;
+                changed = true;
+            }
+            return changed;
+        }
+    }
+
+    private final Function[] functions;
+    private final Builtin[] builtins;
+    private final long[] globalAddresses;
+    private final int globalsSize;
+
+    // 正在编译的函数
+    private CodeBuffer buffer;
+    private int size;
+    private int retSlots;
+    /** 返回值和参数占的 slot 数，loca 0 的 frame slot */
+    private int argSlots;
+    /** 参数和局部变量占的 slot 数，操作数栈从这里开始 */
+    private int frameBase;
+    private State[] states;
+    private int[] worklist;
+    private int worklistSize;
+    private int maxDepth;
+
+    // 生成代码时
+    private boolean emitting;
+    private ClassWriter writer;
+    private ClassWriter.Bytecode code;
+    /** 每条指令的标号，最后一个是函数末尾 */
+    private int[] labels;
+
+    /**
+     * @param functions       模块里的所有函数
+     * @param builtins        全局变量下标 -> 标准库函数
+     * @param globalAddresses 每个全局变量的地址
+     * @param globalsSize     全局变量占的字节数，这个范围里的 load.64/store.64 不用检查
+     */
+    JitCompiler(Function[] functions, Builtin[] builtins, long[] globalAddresses, int globalsSize) {
+        this.functions = functions;
+        this.builtins = builtins;
+        this.globalAddresses = globalAddresses;
+        this.globalsSize = globalsSize;
+    }
+
+    /**
+     * 编译第 fn 个函数，不能编译时返回 null
+     */
+    Result compile(int fn) {
+        var function = functions[fn];
+        buffer = function.getCode();
+        size = buffer.size();
+        retSlots = function.getRetSlots();
+        argSlots = retSlots + function.getParamSlots();
+        frameBase = argSlots + function.getLocSlots();
+        try {
+            analyse();
+            int frameSlots = frameBase + maxDepth;
+            if (FIRST_SLOT + 2 * frameSlots > 0xffff) {
+                throw new Unsupported("too many slots");
+            }
+            int[] entries = entries();
+            var bytes = generate(function, entries, frameSlots);
+            return new Result(bytes, frameSlots, entries);
+        } catch (Unsupported | IllegalStateException e) {
+            return null;
+        } finally {
+            states = null;
+            writer = null;
+            code = null;
+        }
+    }
+
+    /**
+     * 从第 0 条指令开始把栈的状态传播到所有能执行到的指令
+     */
+    private void analyse() {
+        states = new State[size + 1];
+        worklist = new int[16];
+        worklistSize = 0;
+        maxDepth = 0;
+        emitting = false;
+        flow(0, new State(8));
+        while (worklistSize > 0) {
+            int i = worklist[--worklistSize];
+            if (i < size) {
+                step(i, states[i].copy());
+            }
+        }
+    }
+
+    /**
+     * 第 i 条指令可能在栈是 state 时执行
+     */
+    private void flow(int i, State state) {
+        if (emitting) {
+            return;
+        }
+        maxDepth = Math.max(maxDepth, state.depth);
+        if (states[i] == null) {
+            states[i] = state.copy();
+        } else if (!states[i].merge(state)) {
+            return;
+        }
+        if (worklistSize == worklist.length) {
+            worklist = Arrays.copyOf(worklist, worklistSize * 2);
+        }
+        worklist[worklistSize++] = i;
+    }
+
+    /**
+     * 向后跳的 br 的目标，Code 把这些 br 换成了 LOOP，解释器在这里转进编译好的代码
+     */
+    private int[] entries() {
+        int[] entries = new int[0];
+        for (int i = 0; i < size; i++) {
+            int target = branchTarget(i);
+            if (states[i] != null && buffer.opcode(i) == Opcode.BR && target <= i && target > 0
+                    && Arrays.binarySearch(entries, target) < 0) {
+                entries = Arrays.copyOf(entries, entries.length + 1);
+                entries[entries.length - 1] = target;
+                Arrays.sort(entries);
+            }
+        }
+        return entries;
+    }
+
+    private int branchTarget(int i) {
+        long target = buffer.operand(i) + i + 1;
+        return target < 0 || target > size ? -1 : (int) target;
+    }
+
+    private byte[] generate(Function function, int[] entries, int frameSlots) {
+        emitting = true;
+        writer = new ClassWriter(CLASS_NAME, "java/lang/Object", "c0/vm/CompiledCode");
+        var init = new ClassWriter.Bytecode();
+        init.local(ClassWriter.ALOAD, 0);
+        init.op(ClassWriter.INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(ClassWriter.RETURN);
+        writer.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+
+        code = new ClassWriter.Bytecode();
+        labels = new int[size + 1];
+        for (int i = 0; i <= size; i++) {
+            labels[i] = code.newLabel();
+        }
+        // 参数和局部变量从 stack 读进来
+        for (int s = 0; s < frameBase; s++) {
+            loadMemory(s);
+        }
+        if (entries.length > 0) {
+            int[] stubs = new int[entries.length];
+            for (int k = 0; k < entries.length; k++) {
+                stubs[k] = code.newLabel();
+            }
+            code.local(ClassWriter.ILOAD, ENTRY);
+            code.lookupSwitch(entries, stubs, labels[0]);
+            for (int k = 0; k < entries.length; k++) {
+                code.bind(stubs[k]);
+                var state = states[entries[k]];
+                for (int d = 0; d < state.depth; d++) {
+                    if (state.kinds[d] != ADDRESS) {
+                        loadMemory(frameBase + d);
+                    }
+                }
+                code.jump(ClassWriter.GOTO, labels[entries[k]]);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (states[i] != null) {
+                code.bind(labels[i]);
+                step(i, states[i].copy());
+            }
+        }
+        if (states[size] != null) {
+            code.bind(labels[size]);
+            throwError(size + 1, "function " + function.getName() + " ends without ret");
+        }
+        if (code.length() > MAX_CODE_LENGTH) {
+            throw new Unsupported("method too large");
+        }
+        writer.addMethod(ClassWriter.ACC_PUBLIC, "run", RUN_DESCRIPTOR, code, MAX_STACK,
+                FIRST_SLOT + 2 * frameSlots);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 执行一条指令：分析时更新栈并传给后继，生成代码时输出字节码
+     *
+     * @param state 执行前的栈，会被修改
+     */
+    private void step(int i, State state) {
+        var op = buffer.opcode(i);
+        long x = buffer.operand(i);
+        int d = state.depth;
+        switch (op) {
+        case NOP:
+            break;
+        case PUSH:
+            pushConstant(state, x);
+            break;
+        case POP:
+            need(state, 1);
+            state.depth--;
+            break;
+        case POPN:
+            if (x < 0 || x > d) {
+                throw new Unsupported("popn below the operand stack");
+            }
+            state.depth -= (int) x;
+            break;
+        case DUP:
+            need(state, 1);
+            if (emitting && state.kinds[d - 1] != ADDRESS) {
+                loadOperand(d - 1);
+                storeOperand(d);
+            }
+            state.push(state.kinds[d - 1], state.values[d - 1]);
+            break;
+        case LOCA:
+            pushAddress(state, argSlots + x);
+            break;
+        case ARGA:
+            pushAddress(state, x);
+            break;
+        case GLOBA:
+            if (x < 0 || x >= globalAddresses.length) {
+                throw new Unsupported("bad global");
+            }
+            pushConstant(state, globalAddresses[(int) x]);
+            break;
+        case LOAD64:
+            load(state);
+            break;
+        case STORE64:
+            store(state);
+            break;
+        case STACKALLOC:
+            if (x < 0 || x > MAX_DEPTH) {
+                throw new Unsupported("bad stackalloc");
+            }
+            for (int k = 0; k < x; k++) {
+                pushConstant(state, 0);
+            }
+            break;
+        case ADD_I:
+            binary(state, ClassWriter.LADD);
+            break;
+        case SUB_I:
+            binary(state, ClassWriter.LSUB);
+            break;
+        case MUL_I:
+            binary(state, ClassWriter.LMUL);
+            break;
+        case AND:
+            binary(state, ClassWriter.LAND);
+            break;
+        case OR:
+            binary(state, ClassWriter.LOR);
+            break;
+        case XOR:
+            binary(state, ClassWriter.LXOR);
+            break;
+        case SHL:
+            shift(state, ClassWriter.LSHL);
+            break;
+        case SHR:
+            shift(state, ClassWriter.LSHR);
+            break;
+        case SHRL:
+            shift(state, ClassWriter.LUSHR);
+            break;
+        case DIV_I:
+            divide(state, i, "divide");
+            break;
+        case DIV_U:
+            divide(state, i, "divideUnsigned");
+            break;
+        case ADD_F:
+            binaryDouble(state, ClassWriter.DADD);
+            break;
+        case SUB_F:
+            binaryDouble(state, ClassWriter.DSUB);
+            break;
+        case MUL_F:
+            binaryDouble(state, ClassWriter.DMUL);
+            break;
+        case DIV_F:
+            binaryDouble(state, ClassWriter.DDIV);
+            break;
+        case CMP_I:
+            compare(state, "java/lang/Long", "compare", "(JJ)I");
+            break;
+        case CMP_U:
+            compare(state, "java/lang/Long", "compareUnsigned", "(JJ)I");
+            break;
+        case CMP_F:
+            compare(state, NAVM, "compareDouble", "(JJ)J");
+            break;
+        case NOT:
+            test(state, ClassWriter.IFEQ);
+            break;
+        case SET_LT:
+            test(state, ClassWriter.IFLT);
+            break;
+        case SET_GT:
+            test(state, ClassWriter.IFGT);
+            break;
+        case NEG_I:
+            unary(state);
+            if (emitting) {
+                loadOperand(d - 1);
+                code.op(ClassWriter.LNEG);
+                storeOperand(d - 1);
+            }
+            break;
+        case NEG_F:
+            unary(state);
+            if (emitting) {
+                loadDouble(d - 1);
+                code.op(ClassWriter.DNEG);
+                storeDouble(d - 1);
+            }
+            break;
+        case ITOF:
+            unary(state);
+            if (emitting) {
+                loadOperand(d - 1);
+                code.op(ClassWriter.L2D);
+                storeDouble(d - 1);
+            }
+            break;
+        case FTOI:
+            unary(state);
+            if (emitting) {
+                loadDouble(d - 1);
+                code.op(ClassWriter.D2L);
+                storeOperand(d - 1);
+            }
+            break;
+        case BR: {
+            int target = target(i);
+            if (emitting) {
+                code.jump(ClassWriter.GOTO, labels[target]);
+            }
+            flow(target, state);
+            return;
+        }
+        case BR_FALSE:
+        case BR_TRUE: {
+            int target = target(i);
+            pop(state);
+            if (emitting) {
+                loadOperand(d - 1);
+                code.op(ClassWriter.LCONST_0);
+                code.op(ClassWriter.LCMP);
+                code.jump(op == Opcode.BR_TRUE ? ClassWriter.IFNE : ClassWriter.IFEQ, labels[target]);
+            }
+            flow(target, state);
+            break;
+        }
+        case CALL:
+            call(state, i, x);
+            break;
+        case RET:
+            if (emitting) {
+                for (int s = 0; s < retSlots; s++) {
+                    storeMemory(s);
+                }
+                code.op(ClassWriter.RETURN);
+            }
+            return;
+        case CALLNAME:
+            callBuiltin(state, i, x);
+            break;
+        case SCAN_I:
+            scan(state, i, "getInt");
+            break;
+        case SCAN_C:
+            scan(state, i, "getChar");
+            break;
+        case SCAN_F:
+            scan(state, i, "getDouble");
+            break;
+        case PRINT_I:
+            print(state, i, "putInt");
+            break;
+        case PRINT_C:
+            print(state, i, "putChar");
+            break;
+        case PRINT_F:
+            print(state, i, "putDouble");
+            break;
+        case PRINT_S:
+            print(state, i, "putStr");
+            break;
+        case PRINTLN:
+            if (emitting) {
+                code.local(ClassWriter.ALOAD, VM);
+                invokeVm("putLn", "()V");
+            }
+            break;
+        case PANIC:
+            if (emitting) {
+                throwError(i + 1, "panic");
+            }
+            return;
+        default:
+            throw new Unsupported("unsupported instruction " + op);
+        }
+        flow(i + 1, state);
+    }
+
+    private static void need(State state, int n) {
+        if (state.depth < n) {
+            throw new Unsupported("stack underflow");
+        }
+    }
+
+    /**
+     * 第 d 个值要当成普通的值用，不能是地址
+     */
+    private static void value(State state, int d) {
+        if (state.kinds[d] == ADDRESS) {
+            throw new Unsupported("address used as a value");
+        }
+    }
+
+    private static void pop(State state) {
+        need(state, 1);
+        value(state, state.depth - 1);
+        state.depth--;
+    }
+
+    private static void unary(State state) {
+        need(state, 1);
+        value(state, state.depth - 1);
+        state.kinds[state.depth - 1] = VALUE;
+    }
+
+    /**
+     * 弹出两个值，压入运算结果
+     */
+    private static void binary(State state) {
+        need(state, 2);
+        value(state, state.depth - 1);
+        value(state, state.depth - 2);
+        state.depth--;
+        state.kinds[state.depth - 1] = VALUE;
+    }
+
+    private void pushConstant(State state, long value) {
+        if (emitting) {
+            code.lconst(writer, value);
+            storeOperand(state.depth);
+        }
+        state.push(CONSTANT, value);
+    }
+
+    private void pushAddress(State state, long slot) {
+        if (slot < 0 || slot >= frameBase) {
+            throw new Unsupported("address outside the frame");
+        }
+        state.push(ADDRESS, slot);
+    }
+
+    /**
+     * 全局变量的地址换成数据区的偏移，不是全局变量里的 8 个字节时不编译
+     */
+    private int globalOffset(long address) {
+        long offset = address - Navm.DATA_BASE;
+        if (address < Navm.DATA_BASE || offset + 8 > globalsSize) {
+            throw new Unsupported("load or store through a computed address");
+        }
+        return (int) offset;
+    }
+
+    private void load(State state) {
+        need(state, 1);
+        int d = state.depth - 1;
+        int kind = state.kinds[d];
+        long address = state.values[d];
+        if (kind == ADDRESS) {
+            if (emitting) {
+                loadSlot((int) address);
+                storeOperand(d);
+            }
+        } else {
+            int offset = globalOffset(kind == CONSTANT ? address : -1);
+            if (emitting) {
+                code.local(ClassWriter.ALOAD, VM);
+                code.iconst(writer, offset);
+                invokeVm("loadGlobal", "(I)J");
+                storeOperand(d);
+            }
+        }
+        state.kinds[d] = VALUE;
+    }
+
+    private void store(State state) {
+        need(state, 2);
+        int d = state.depth - 2;
+        value(state, d + 1);
+        int kind = state.kinds[d];
+        long address = state.values[d];
+        if (kind == ADDRESS) {
+            if (emitting) {
+                loadOperand(d + 1);
+                storeSlot((int) address);
+            }
+        } else {
+            int offset = globalOffset(kind == CONSTANT ? address : -1);
+            if (emitting) {
+                code.local(ClassWriter.ALOAD, VM);
+                code.iconst(writer, offset);
+                loadOperand(d + 1);
+                invokeVm("storeGlobal", "(IJ)V");
+            }
+        }
+        state.depth -= 2;
+    }
+
+    private void binary(State state, int opcode) {
+        binary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            loadOperand(d);
+            loadOperand(d + 1);
+            code.op(opcode);
+            storeOperand(d);
+        }
+    }
+
+    /**
+     * JVM 的移位距离是 int，和 long 一样只取低 6 位
+     */
+    private void shift(State state, int opcode) {
+        binary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            loadOperand(d);
+            loadOperand(d + 1);
+            code.op(ClassWriter.L2I);
+            code.op(opcode);
+            storeOperand(d);
+        }
+    }
+
+    /**
+     * 除以 0 时由 Navm 报错，所以要传指令下标
+     */
+    private void divide(State state, int i, String name) {
+        binary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            code.local(ClassWriter.ALOAD, VM);
+            loadOperand(d);
+            loadOperand(d + 1);
+            code.iconst(writer, i + 1);
+            invokeVm(name, "(JJI)J");
+            storeOperand(d);
+        }
+    }
+
+    private void binaryDouble(State state, int opcode) {
+        binary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            loadDouble(d);
+            loadDouble(d + 1);
+            code.op(opcode);
+            storeDouble(d);
+        }
+    }
+
+    /**
+     * cmp.x：调用一个静态方法，返回 int 时再转成 long
+     */
+    private void compare(State state, String owner, String name, String descriptor) {
+        binary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            loadOperand(d);
+            loadOperand(d + 1);
+            code.op(ClassWriter.INVOKESTATIC, writer.methodRef(owner, name, descriptor));
+            if (descriptor.endsWith("I")) {
+                code.op(ClassWriter.I2L);
+            }
+            storeOperand(d);
+        }
+    }
+
+    /**
+     * not、set.lt、set.gt：栈顶和 0 比较，满足 condition 时是 1，否则是 0
+     */
+    private void test(State state, int condition) {
+        unary(state);
+        if (emitting) {
+            int d = state.depth - 1;
+            int yes = code.newLabel();
+            int done = code.newLabel();
+            loadOperand(d);
+            code.op(ClassWriter.LCONST_0);
+            code.op(ClassWriter.LCMP);
+            code.jump(condition, yes);
+            code.op(ClassWriter.LCONST_0);
+            code.jump(ClassWriter.GOTO, done);
+            code.bind(yes);
+            code.op(ClassWriter.LCONST_1);
+            code.bind(done);
+            storeOperand(d);
+        }
+    }
+
+    private int target(int i) {
+        int target = branchTarget(i);
+        if (target == -1) {
+            throw new Unsupported("branch out of the function");
+        }
+        return target;
+    }
+
+    /**
+     * call：把帧写回 stack，由 Navm.invoke 调用（被调用的函数可能也编译好了），返回后再读回来
+     */
+    private void call(State state, int i, long target) {
+        if (target <= 0 || target >= functions.length) {
+            throw new Unsupported("bad call target");
+        }
+        var callee = functions[(int) target];
+        int calleeRetSlots = callee.getRetSlots();
+        int calleeSlots = calleeRetSlots + callee.getParamSlots();
+        need(state, calleeSlots);
+        int d = state.depth;
+        // 返回值和参数所在的位置
+        int calleeBase = d - calleeSlots;
+        for (int k = calleeBase; k < d; k++) {
+            value(state, k);
+        }
+        if (emitting) {
+            for (int s = 0; s < frameBase; s++) {
+                storeMemory(s);
+            }
+            for (int k = 0; k < d; k++) {
+                if (state.kinds[k] == ADDRESS) {
+                    // 地址只在这时算出来写到 stack 里
+                    memoryIndex(frameBase + k);
+                    code.local(ClassWriter.ILOAD, BP);
+                    code.iconst(writer, (int) state.values[k]);
+                    code.op(ClassWriter.IADD);
+                    code.op(ClassWriter.I2L);
+                    code.iconst(writer, 3);
+                    code.op(ClassWriter.LSHL);
+                    code.op(ClassWriter.LASTORE);
+                } else {
+                    storeMemory(frameBase + k);
+                }
+            }
+            code.local(ClassWriter.ALOAD, VM);
+            code.iconst(writer, (int) target);
+            code.local(ClassWriter.ILOAD, BP);
+            code.iconst(writer, frameBase + d);
+            code.op(ClassWriter.IADD);
+            code.iconst(writer, i + 1);
+            invokeVm("invoke", "(III)V");
+            for (int s = 0; s < frameBase; s++) {
+                loadMemory(s);
+            }
+            // 常量和地址不会变，不用读
+            for (int k = 0; k < calleeBase; k++) {
+                if (state.kinds[k] == VALUE) {
+                    loadMemory(frameBase + k);
+                }
+            }
+            for (int k = calleeBase; k < calleeBase + calleeRetSlots; k++) {
+                loadMemory(frameBase + k);
+            }
+        }
+        state.depth = calleeBase + calleeRetSlots;
+        for (int k = calleeBase; k < state.depth; k++) {
+            state.kinds[k] = VALUE;
+        }
+    }
+
+    private void callBuiltin(State state, int i, long index) {
+        var builtin = index >= 0 && index < builtins.length ? builtins[(int) index] : null;
+        if (builtin == null) {
+            throw new Unsupported("callname of an unknown function");
+        }
+        switch (builtin) {
+        case GETINT:
+            setTop(state, i, "getInt");
+            break;
+        case GETDOUBLE:
+            setTop(state, i, "getDouble");
+            break;
+        case GETCHAR:
+            setTop(state, i, "getChar");
+            break;
+        case PUTINT:
+            print(state, i, "putInt");
+            break;
+        case PUTDOUBLE:
+            print(state, i, "putDouble");
+            break;
+        case PUTCHAR:
+            print(state, i, "putChar");
+            break;
+        case PUTSTR:
+            print(state, i, "putStr");
+            break;
+        case PUTLN:
+            if (emitting) {
+                code.local(ClassWriter.ALOAD, VM);
+                invokeVm("putLn", "()V");
+            }
+            break;
+        default:
+            throw new Unsupported("unsupported library function " + builtin.getName());
+        }
+    }
+
+    /**
+     * getint 之类：读到的值写进调用者 stackalloc 的 slot
+     */
+    private void setTop(State state, int i, String name) {
+        need(state, 1);
+        int d = state.depth - 1;
+        if (emitting) {
+            code.local(ClassWriter.ALOAD, VM);
+            code.iconst(writer, i + 1);
+            invokeVm(name, "(I)J");
+            storeOperand(d);
+        }
+        state.kinds[d] = VALUE;
+    }
+
+    private void scan(State state, int i, String name) {
+        if (emitting) {
+            code.local(ClassWriter.ALOAD, VM);
+            code.iconst(writer, i + 1);
+            invokeVm(name, "(I)J");
+            storeOperand(state.depth);
+        }
+        state.push(VALUE, 0);
+    }
+
+    private void print(State state, int i, String name) {
+        pop(state);
+        if (emitting) {
+            code.local(ClassWriter.ALOAD, VM);
+            loadOperand(state.depth);
+            if (name.equals("putStr")) {
+                code.iconst(writer, i + 1);
+                invokeVm(name, "(JI)V");
+            } else {
+                invokeVm(name, "(J)V");
+            }
+        }
+    }
+
+    private void throwError(int ip, String message) {
+        code.local(ClassWriter.ALOAD, VM);
+        code.iconst(writer, ip);
+        code.ldc(writer.string(message));
+        invokeVm("error", "(ILjava/lang/String;)Lc0/error/VmError;");
+        code.op(ClassWriter.ATHROW);
+    }
+
+    private void invokeVm(String name, String descriptor) {
+        code.op(ClassWriter.INVOKEVIRTUAL, writer.methodRef(NAVM, name, descriptor));
+    }
+
+    private static int local(int slot) {
+        return FIRST_SLOT + 2 * slot;
+    }
+
+    private void loadSlot(int slot) {
+        code.local(ClassWriter.LLOAD, local(slot));
+    }
+
+    private void storeSlot(int slot) {
+        code.local(ClassWriter.LSTORE, local(slot));
+    }
+
+    /** 操作数栈上第 d 个值 */
+    private void loadOperand(int d) {
+        loadSlot(frameBase + d);
+    }
+
+    private void storeOperand(int d) {
+        storeSlot(frameBase + d);
+    }
+
+    private void loadDouble(int d) {
+        loadOperand(d);
+        code.op(ClassWriter.INVOKESTATIC, writer.methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+    }
+
+    private void storeDouble(int d) {
+        code.op(ClassWriter.INVOKESTATIC, writer.methodRef("java/lang/Double", "doubleToRawLongBits", "(D)J"));
+        storeOperand(d);
+    }
+
+    /** 压入 stack 和 bp + slot */
+    private void memoryIndex(int slot) {
+        code.local(ClassWriter.ALOAD, STACK);
+        code.local(ClassWriter.ILOAD, BP);
+        if (slot != 0) {
+            code.iconst(writer, slot);
+            code.op(ClassWriter.IADD);
+        }
+    }
+
+    /** stack[bp + slot] 读进局部变量 */
+    private void loadMemory(int slot) {
+        memoryIndex(slot);
+        code.op(ClassWriter.LALOAD);
+        storeSlot(slot);
+    }
+
+    /** 局部变量写回 stack[bp + slot] */
+    private void storeMemory(int slot) {
+        memoryIndex(slot);
+        loadSlot(slot);
+        code.op(ClassWriter.LASTORE);
+    }
+}
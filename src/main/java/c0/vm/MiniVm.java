@@ -1,103 +1,285 @@
 package c0.vm;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.List;
 
+import c0.error.VmError;
 import c0.instruction.Instruction;
 
+/**
+ * 玩具指令集（Operation）的虚拟机
+ *
+ * 构造时把指令表预解码成 int[] 操作码和 long[] 操作数，之后修改传进来的 List 不影响执行。
+ * 这套指令没有跳转，每条指令执行前的栈深度是固定的，所以栈溢出、栈下溢和 LOD/STO 越界
+ * 都在预解码时找出来：Run 只执行出错之前的指令，不用逐条检查，然后抛出 VmError。
+ */
 public class MiniVm {
-    private List<Instruction> instructions;
+    /** 默认的最大栈深度 */
+    public static final int DEFAULT_MAX_DEPTH = 1024;
+
+    // 预解码后的操作码，ADD_LIT 之后的是几条指令合并成的一条
+    private static final int NOP = 0;
+    private static final int LIT = 1;
+    private static final int LOD = 2;
+    private static final int STO = 3;
+    private static final int ADD = 4;
+    private static final int SUB = 5;
+    private static final int MUL = 6;
+    private static final int DIV = 7;
+    private static final int WRT = 8;
+    /** LIT c; ADD，操作数是 c */
+    private static final int ADD_LIT = 9;
+    private static final int SUB_LIT = 10;
+    private static final int MUL_LIT = 11;
+    private static final int DIV_LIT = 12;
+    /** LOD a; LIT c; ADD; STO a，也就是 a = a + c，操作数是 a 和 c 拼成的 long */
+    private static final int ADD_SLOT = 13;
+    private static final int SUB_SLOT = 14;
+    private static final int MUL_SLOT = 15;
+    private static final int DIV_SLOT = 16;
+
     private PrintStream out;
 
+    private int[] ops;
+    private long[] operands;
+
+    /** 前 limit 条指令可以放心执行，执行到 limit 时抛出 error，没有错误时是指令条数 */
+    private int limit;
+    private String error;
+
     /**
      * @param instructions
      * @param out
+     * @param maxDepth     栈最多能放多少个值，超过时抛出 VmError
      */
-    public MiniVm(List<Instruction> instructions, PrintStream out) {
-        this.instructions = instructions;
+    public MiniVm(List<Instruction> instructions, PrintStream out, int maxDepth) {
         this.out = out;
+        this.stack = new long[maxDepth];
+        decode(instructions);
     }
 
-    public MiniVm(List<Instruction> instructions) {
-        this.instructions = instructions;
-        this.out = System.out;
+    /**
+     * @param instructions
+     * @param out
+     */
+    public MiniVm(List<Instruction> instructions, PrintStream out) {
+        this(instructions, out, DEFAULT_MAX_DEPTH);
     }
 
-    private ArrayList<Integer> stack = new ArrayList<>();
+    public MiniVm(List<Instruction> instructions) {
+        this(instructions, System.out);
+    }
 
-    private int ip;
+    /** 栈预先分配好，运行时不再分配内存 */
+    private long[] stack;
 
-    public void Run() {
-        ip = 0;
-        while (ip < instructions.size()) {
-            var inst = instructions.get(ip);
-            RunStep(inst);
-            ip++;
+    /**
+     * 检查栈深度并生成 ops/operands，合并 LIT 和后面的 ADD/SUB/MUL/DIV
+     */
+    private void decode(List<Instruction> instructions) {
+        int size = instructions.size();
+        ops = new int[size];
+        operands = new long[size];
+        limit = size;
+        int depth = 0;
+        for (int i = 0; i < size; i++) {
+            var inst = instructions.get(i);
+            long x = inst.getX() == null ? 0 : inst.getX();
+            // 需要栈上有几个值，执行后栈深度的变化
+            int need = 0;
+            int effect = 0;
+            int op;
+            switch (inst.getOpt()) {
+            case LIT:
+                op = LIT;
+                effect = 1;
+                break;
+            case LOD:
+                op = LOD;
+                effect = 1;
+                if (x < 0 || x >= depth) {
+                    stop(i, "stack slot " + x + " out of range at instruction " + i);
+                    return;
+                }
+                break;
+            case STO:
+                op = STO;
+                need = 1;
+                effect = -1;
+                // 先弹出值，再写到 x
+                if (depth >= 1 && (x < 0 || x >= depth - 1)) {
+                    stop(i, "stack slot " + x + " out of range at instruction " + i);
+                    return;
+                }
+                break;
+            case ADD:
+                op = ADD;
+                need = 2;
+                effect = -1;
+                break;
+            case SUB:
+                op = SUB;
+                need = 2;
+                effect = -1;
+                break;
+            case MUL:
+                op = MUL;
+                need = 2;
+                effect = -1;
+                break;
+            case DIV:
+                op = DIV;
+                need = 2;
+                effect = -1;
+                break;
+            case WRT:
+                op = WRT;
+                need = 1;
+                effect = -1;
+                break;
+            case ILL:
+                stop(i, "Illegal instruction at " + i);
+                return;
+            default:
+                op = NOP;
+                break;
+            }
+            if (depth < need) {
+                stop(i, "stack underflow at instruction " + i);
+                return;
+            }
+            if (depth + effect > stack.length) {
+                stop(i, "stack overflow at instruction " + i + ": max depth is " + stack.length);
+                return;
+            }
+            depth += effect;
+            ops[i] = op;
+            operands[i] = x;
         }
+        fuse();
     }
 
-    private Integer pop() {
-        var val = this.stack.get(this.stack.size() - 1);
-        this.stack.remove(this.stack.size() - 1);
-        return val;
+    private void stop(int index, String message) {
+        limit = index;
+        error = message;
     }
 
-    private void push(Integer i) {
-        this.stack.add(i);
+    /**
+     * 合并常见的指令序列，合并后的指令放在第一条的位置，后面几条原样留着，执行时跳过
+     *
+     * LOD a; LIT c; ADD; STO a 合并成 ADD_SLOT，LIT c; ADD 合并成 ADD_LIT，SUB/MUL/DIV 相同
+     */
+    private void fuse() {
+        for (int i = 0; i + 1 < limit; i++) {
+            if (i + 3 < limit && ops[i] == LOD && ops[i + 1] == LIT && isArithmetic(ops[i + 2]) && ops[i + 3] == STO
+                    && operands[i] == operands[i + 3]) {
+                ops[i] = ADD_SLOT + (ops[i + 2] - ADD);
+                operands[i] = (operands[i] << 32) | (operands[i + 1] & 0xffffffffL);
+                i += 3;
+            } else if (ops[i] == LIT && isArithmetic(ops[i + 1])) {
+                ops[i] = ADD_LIT + (ops[i + 1] - ADD);
+                i++;
+            }
+        }
     }
 
-    private void RunStep(Instruction inst) {
-        switch (inst.getOpt()) {
-            case ADD: {
-                var a = pop();
-                var b = pop();
-                push(a + b);
-            }
+    private static boolean isArithmetic(int op) {
+        return op == ADD || op == SUB || op == MUL || op == DIV;
+    }
+
+    /**
+     * 从头运行，可以反复调用
+     *
+     * 运算和以前的 Integer 一样按 32 位回绕
+     */
+    public void Run() {
+        final var ops = this.ops;
+        final var operands = this.operands;
+        final var stack = this.stack;
+        final int limit = this.limit;
+        int sp = 0;
+        int ip = 0;
+        while (ip < limit) {
+            long x = operands[ip];
+            switch (ops[ip]) {
+            case LIT:
+                stack[sp++] = x;
                 break;
-            case DIV: {
-                var b = pop();
-                var a = pop();
-                push(a / b);
-            }
+            case LOD:
+                stack[sp] = stack[(int) x];
+                sp++;
                 break;
-            case ILL: {
-                throw new Error("Illegal instruction");
-            }
-            case LIT: {
-                push(inst.getX());
-            }
+            case STO:
+                stack[(int) x] = stack[--sp];
                 break;
-            case LOD: {
-                var x = stack.get(inst.getX());
-                push(x);
-            }
+            case ADD:
+                sp--;
+                stack[sp - 1] = (int) (stack[sp - 1] + stack[sp]);
+                break;
+            case SUB:
+                sp--;
+                stack[sp - 1] = (int) (stack[sp - 1] - stack[sp]);
+                break;
+            case MUL:
+                sp--;
+                stack[sp - 1] = (int) (stack[sp - 1] * stack[sp]);
+                break;
+            case DIV:
+                sp--;
+                stack[sp - 1] = (int) stack[sp - 1] / (int) stack[sp];
+                break;
+            case WRT:
+                // 和以前的 printf("%d\n") 输出相同，但不用每次解析格式
+                out.print(stack[--sp]);
+                out.print('\n');
+                break;
+            case ADD_LIT:
+                stack[sp - 1] = (int) (stack[sp - 1] + x);
+                ip++;
                 break;
-            case MUL: {
-                var b = pop();
-                var a = pop();
-                push(a * b);
+            case SUB_LIT:
+                stack[sp - 1] = (int) (stack[sp - 1] - x);
+                ip++;
+                break;
+            case MUL_LIT:
+                stack[sp - 1] = (int) (stack[sp - 1] * x);
+                ip++;
+                break;
+            case DIV_LIT:
+                stack[sp - 1] = (int) stack[sp - 1] / (int) x;
+                ip++;
+                break;
+            case ADD_SLOT: {
+                int a = (int) (x >> 32);
+                stack[a] = (int) (stack[a] + (int) x);
+                ip += 3;
             }
                 break;
-            case STO: {
-                var x = pop();
-                stack.set(inst.getX(), x);
+            case SUB_SLOT: {
+                int a = (int) (x >> 32);
+                stack[a] = (int) (stack[a] - (int) x);
+                ip += 3;
             }
                 break;
-            case SUB: {
-                var b = pop();
-                var a = pop();
-                push(a - b);
+            case MUL_SLOT: {
+                int a = (int) (x >> 32);
+                stack[a] = (int) (stack[a] * (int) x);
+                ip += 3;
             }
                 break;
-            case WRT: {
-                var b = pop();
-                out.printf("%d\n", b);
+            case DIV_SLOT: {
+                int a = (int) (x >> 32);
+                stack[a] = (int) stack[a] / (int) x;
+                ip += 3;
             }
                 break;
             default:
                 break;
-
+            }
+            ip++;
+        }
+        if (error != null) {
+            throw new VmError(error);
         }
     }
 }
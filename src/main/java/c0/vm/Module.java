@@ -0,0 +1,106 @@
+package c0.vm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import c0.instruction.CodeBuffer;
+import c0.instruction.Function;
+import c0.instruction.Opcode;
+
+/**
+ * 一个可以执行的 o0 模块：全局变量和函数，第 0 个函数是 _start
+ *
+ * 可以从 BinaryEmitter 写出的二进制 o0 读进来，也可以由 ModuleEmitter 在编译时直接生成
+ */
+public class Module {
+    private static final int MAGIC = 0x72303b3e;
+    private static final int VERSION = 1;
+
+    /** 每个全局变量的初始内容，字符串和函数名是它们的字节 */
+    private List<byte[]> globals;
+    private List<Function> functions;
+
+    public Module(List<byte[]> globals, List<Function> functions) {
+        this.globals = Collections.unmodifiableList(globals);
+        this.functions = Collections.unmodifiableList(functions);
+    }
+
+    public List<byte[]> getGlobals() {
+        return globals;
+    }
+
+    public List<Function> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * 读入二进制 o0
+     *
+     * @throws IOException 读取失败或者格式不对
+     */
+    public static Module read(InputStream input) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(input));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not an o0 module: bad magic");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported o0 version " + version);
+            }
+            int globalCount = in.readInt();
+            var globals = new ArrayList<byte[]>(globalCount);
+            for (int i = 0; i < globalCount; i++) {
+                in.readByte(); // is_const，执行时不检查
+                var value = new byte[in.readInt()];
+                in.readFully(value);
+                globals.add(value);
+            }
+            int functionCount = in.readInt();
+            var functions = new ArrayList<Function>(functionCount);
+            for (int i = 0; i < functionCount; i++) {
+                int nameIndex = in.readInt();
+                int retSlots = in.readInt();
+                int paramSlots = in.readInt();
+                int locSlots = in.readInt();
+                int size = in.readInt();
+                var code = new CodeBuffer(size);
+                for (int k = 0; k < size; k++) {
+                    int byteCode = in.readUnsignedByte();
+                    var op = Opcode.of(byteCode);
+                    if (op == null) {
+                        throw new IOException(String.format("unknown opcode %02x in function %d", byteCode, i));
+                    }
+                    switch (op.getOperandSize()) {
+                    case 8:
+                        code.add(op, in.readLong());
+                        break;
+                    case 4:
+                        code.add(op, in.readInt());
+                        break;
+                    default:
+                        code.add(op);
+                        break;
+                    }
+                }
+                String name = nameIndex >= 0 && nameIndex < globals.size()
+                        ? new String(globals.get(nameIndex), StandardCharsets.UTF_8)
+                        : "";
+                functions.add(new Function(name, nameIndex, retSlots, paramSlots, locSlots, code));
+            }
+            if (functions.isEmpty()) {
+                throw new IOException("o0 module has no _start function");
+            }
+            return new Module(globals, functions);
+        } catch (EOFException e) {
+            throw new IOException("truncated o0 module", e);
+        }
+    }
+}
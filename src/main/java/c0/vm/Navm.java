@@ -0,0 +1,1072 @@
+package c0.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PushbackReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import c0.analyser.Builtin;
+import c0.error.VmError;
+import c0.instruction.Function;
+
+/**
+ * navm 指令集的解释器，执行编译好的 Module
+ *
+ * 内存分两块：
+ * 1. 栈：预先分配的 long[]，一个 slot 8 字节，地址是 slot 下标乘 8
+ * 2. 数据区：byte[]，前面是全局变量，后面是 alloc 分配的内存，地址从 DATA_BASE 开始
+ * load/store 都按小端序，栈上的 load.8/16/32 不能跨 slot。
+ *
+ * 调用约定和 navm 相同：调用者 stackalloc 返回值的 slot，再压参数，
+ * 被调用的函数里 arga 0 开始依次是返回值和参数，loca 0 开始是局部变量，ret 之后栈上只留下返回值。
+ * 返回地址放在单独的帧栈里，不占栈 slot。
+ *
+ * _start 执行到末尾或者 ret 时程序结束。
+ *
+ * 打开 JIT 时，调用次数或者循环次数多的函数编译成 JVM 字节码（见 Jit、JitCompiler），
+ * 编译好的代码和解释器共用栈和数据区，执行结果和解释执行完全一样。
+ *
+ * setProfile 之后统计执行的指令和函数用时（见 Profile），没打开时解释器每条指令只多一次判断。
+ */
+public class Navm {
+    /** 默认的栈大小（slot 数），也是调用深度的上限 */
+    public static final int DEFAULT_MAX_DEPTH = 1 << 20;
+
+    /** 数据区的起始地址，比它小的地址都在栈上 */
+    public static final long DATA_BASE = 1L << 48;
+
+    /** 编译好的代码最多嵌套几层，再深就解释执行，免得 JVM 的栈不够用 */
+    private static final int MAX_JIT_DEPTH = 128;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private Module module;
+    private Function[] functions;
+    /** 预解码后的函数，和 functions 一一对应 */
+    private Code[] codes;
+
+    /** 每个全局变量的地址 */
+    private long[] globalAddresses;
+
+    /** 全局变量下标 -> 标准库函数，不是标准库函数名的是 null */
+    private Builtin[] builtins;
+
+    private PushbackReader in;
+    private PrintStream out;
+
+    private long[] stack;
+    private int sp;
+
+    /** 调用者的 fn、ip、bp，每帧 3 个 int */
+    private int[] frames = new int[48];
+    private int fp;
+
+    private byte[] data;
+    private int[] globalOffsets;
+    private int globalsSize;
+    /** 数据区已经使用的字节数 */
+    private int dataTop;
+
+    // 当前函数
+    private int fn;
+    private int ip;
+    private int bp;
+    /** loca 0 的 slot */
+    private int locBase;
+    private Code code;
+
+    /** 没打开 JIT 时是 null */
+    private Jit jit;
+    /** 正在执行的编译好的代码有几层 */
+    private int jitDepth;
+    /** 编译好的代码调用的函数由一个新的 execute 解释执行，帧栈回到这里时返回 */
+    private int exitFp;
+
+    /** 没打开 profile 时是 null */
+    private Profile profile;
+
+    /**
+     * @param module
+     * @param in       getint 等标准库函数的输入
+     * @param out      putint 等标准库函数的输出
+     * @param maxDepth 栈最多能放多少个 slot，超过时抛出 VmError
+     * @param jit      是否把热的函数编译成 JVM 字节码
+     */
+    public Navm(Module module, InputStream in, PrintStream out, int maxDepth, boolean jit) {
+        this.module = module;
+        this.functions = module.getFunctions().toArray(new Function[0]);
+        this.in = new PushbackReader(new InputStreamReader(in, Charset.defaultCharset()));
+        this.out = out;
+        this.stack = new long[maxDepth];
+        var globals = module.getGlobals();
+        this.builtins = new Builtin[globals.size()];
+        for (int i = 0; i < globals.size(); i++) {
+            builtins[i] = Builtin.of(new String(globals.get(i), StandardCharsets.UTF_8));
+        }
+        layoutGlobals();
+        this.globalAddresses = new long[globalOffsets.length];
+        for (int i = 0; i < globalOffsets.length; i++) {
+            globalAddresses[i] = DATA_BASE + globalOffsets[i];
+        }
+        decode(true);
+        if (jit) {
+            enableJit(Jit.CALL_THRESHOLD, Jit.LOOP_THRESHOLD);
+        }
+    }
+
+    public Navm(Module module, InputStream in, PrintStream out, int maxDepth) {
+        this(module, in, out, maxDepth, false);
+    }
+
+    public Navm(Module module, InputStream in, PrintStream out) {
+        this(module, in, out, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * 打开或者关掉（null）profile，之后的 run 都累加到 profile 里
+     *
+     * @param profile 用同一个 Module 创建的 Profile
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+        decode(profile == null);
+    }
+
+    /**
+     * 用给定的阈值打开 JIT，已经编译的函数都丢掉，测试时用很小的阈值
+     */
+    void enableJit(int callThreshold, int loopThreshold) {
+        this.jit = new Jit(functions, builtins, globalAddresses, globalsSize, callThreshold, loopThreshold);
+    }
+
+    /** 没打开 JIT 时是 null */
+    Jit getJit() {
+        return jit;
+    }
+
+    private void decode(boolean fuse) {
+        this.codes = new Code[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            codes[i] = Code.decode(functions[i].getCode(), globalAddresses, fuse);
+        }
+    }
+
+    /**
+     * 从 _start 开始执行，全局变量和栈都重新初始化，可以反复调用
+     *
+     * @throws VmError 运行时错误，比如栈溢出、除以 0、panic
+     */
+    public void run() {
+        initData();
+        sp = 0;
+        fp = 0;
+        jitDepth = 0;
+        exitFp = 0;
+        try {
+            enter(0, 0);
+            execute();
+        } finally {
+            if (profile != null) {
+                profile.finish();
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * 全局变量按 8 字节对齐依次放在数据区开头
+     */
+    private void layoutGlobals() {
+        var globals = module.getGlobals();
+        globalOffsets = new int[globals.size()];
+        int size = 0;
+        for (int i = 0; i < globals.size(); i++) {
+            globalOffsets[i] = size;
+            size += align(globals.get(i).length);
+        }
+        globalsSize = size;
+    }
+
+    private void initData() {
+        var globals = module.getGlobals();
+        data = new byte[Math.max(globalsSize, 64)];
+        for (int i = 0; i < globals.size(); i++) {
+            var value = globals.get(i);
+            System.arraycopy(value, 0, data, globalOffsets[i], value.length);
+        }
+        dataTop = globalsSize;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * 解释执行，直到 _start 返回
+     *
+     * 常用的状态放在局部变量里，只有调用、返回和不常用的指令才写回字段交给别的方法。
+     * 栈越界不逐条检查，数组越界时再换成 VmError。
+     */
+    private void execute() {
+        final long[] stack = this.stack;
+        int[] ops = code.ops;
+        long[] operands = code.operands;
+        int sp = this.sp;
+        int ip = this.ip;
+        int bp = this.bp;
+        int locBase = this.locBase;
+        // profile 的计数，没打开时是 null
+        long[] hits = profile == null ? null : profile.hits(fn);
+        long[] backEdges = profile == null ? null : profile.backEdges(fn);
+        try {
+            while (true) {
+                int op = ops[ip];
+                long x = operands[ip];
+                if (hits != null) {
+                    hits[ip]++;
+                }
+                ip++;
+                switch (op) {
+                case Code.NOP:
+                    break;
+                case Code.PUSH:
+                    stack[sp++] = x;
+                    break;
+                case Code.POP:
+                    if (sp == 0) {
+                        throw error(ip, "stack underflow");
+                    }
+                    sp--;
+                    break;
+                case Code.POPN:
+                    if (x < 0 || x > sp) {
+                        throw error(ip, "stack underflow");
+                    }
+                    sp -= (int) x;
+                    break;
+                case Code.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case Code.LOCA:
+                    stack[sp++] = (long) (locBase + (int) x) << 3;
+                    break;
+                case Code.ARGA:
+                    stack[sp++] = (long) (bp + (int) x) << 3;
+                    break;
+                case Code.LOAD64: {
+                    long address = stack[sp - 1];
+                    if (address >= 0 && (address & 7) == 0 && (address >>> 3) < sp) {
+                        stack[sp - 1] = stack[(int) (address >>> 3)];
+                    } else {
+                        this.sp = sp;
+                        this.ip = ip;
+                        stack[sp - 1] = load(address, 8);
+                    }
+                }
+                    break;
+                case Code.STORE64: {
+                    long value = stack[--sp];
+                    long address = stack[--sp];
+                    if (address >= 0 && (address & 7) == 0 && (address >>> 3) < sp) {
+                        stack[(int) (address >>> 3)] = value;
+                    } else {
+                        this.sp = sp;
+                        this.ip = ip;
+                        store(address, value, 8);
+                    }
+                }
+                    break;
+                // 超级指令不能直接完成时只执行第一条，见 Code
+                case Code.LOAD_LOCAL: {
+                    int slot = locBase + (int) x;
+                    if (slot < 0 || slot >= sp) {
+                        stack[sp++] = (long) slot << 3;
+                        break;
+                    }
+                    stack[sp++] = stack[slot];
+                    ip++;
+                }
+                    break;
+                case Code.LOAD_ARG: {
+                    int slot = bp + (int) x;
+                    if (slot < 0 || slot >= sp) {
+                        stack[sp++] = (long) slot << 3;
+                        break;
+                    }
+                    stack[sp++] = stack[slot];
+                    ip++;
+                }
+                    break;
+                case Code.LOAD_GLOBAL: {
+                    long offset = x - DATA_BASE;
+                    if (offset + 8 > dataTop) {
+                        stack[sp++] = x;
+                        break;
+                    }
+                    stack[sp++] = (long) LONGS.get(data, (int) offset);
+                    ip++;
+                }
+                    break;
+                case Code.ADD_IMM:
+                    if (sp == 0 || sp == stack.length) {
+                        stack[sp++] = x;
+                        break;
+                    }
+                    stack[sp - 1] += x;
+                    ip++;
+                    break;
+                case Code.SUB_IMM:
+                    if (sp == 0 || sp == stack.length) {
+                        stack[sp++] = x;
+                        break;
+                    }
+                    stack[sp - 1] -= x;
+                    ip++;
+                    break;
+                case Code.MUL_IMM:
+                    if (sp == 0 || sp == stack.length) {
+                        stack[sp++] = x;
+                        break;
+                    }
+                    stack[sp - 1] *= x;
+                    ip++;
+                    break;
+                case Code.ADD_I:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case Code.SUB_I:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case Code.MUL_I:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case Code.DIV_I: {
+                    long r = stack[--sp];
+                    long l = stack[sp - 1];
+                    if (r == 0) {
+                        throw error(ip, "division by zero");
+                    }
+                    if (l == Long.MIN_VALUE && r == -1) {
+                        throw error(ip, "division overflow");
+                    }
+                    stack[sp - 1] = l / r;
+                }
+                    break;
+                case Code.DIV_U: {
+                    long r = stack[--sp];
+                    if (r == 0) {
+                        throw error(ip, "division by zero");
+                    }
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], r);
+                }
+                    break;
+                case Code.ADD_F:
+                    sp--;
+                    stack[sp - 1] = bits(real(stack[sp - 1]) + real(stack[sp]));
+                    break;
+                case Code.SUB_F:
+                    sp--;
+                    stack[sp - 1] = bits(real(stack[sp - 1]) - real(stack[sp]));
+                    break;
+                case Code.MUL_F:
+                    sp--;
+                    stack[sp - 1] = bits(real(stack[sp - 1]) * real(stack[sp]));
+                    break;
+                case Code.DIV_F:
+                    sp--;
+                    stack[sp - 1] = bits(real(stack[sp - 1]) / real(stack[sp]));
+                    break;
+                case Code.SHL:
+                    sp--;
+                    stack[sp - 1] <<= stack[sp];
+                    break;
+                case Code.SHR:
+                    sp--;
+                    stack[sp - 1] >>= stack[sp];
+                    break;
+                case Code.SHRL:
+                    sp--;
+                    stack[sp - 1] >>>= stack[sp];
+                    break;
+                case Code.AND:
+                    sp--;
+                    stack[sp - 1] &= stack[sp];
+                    break;
+                case Code.OR:
+                    sp--;
+                    stack[sp - 1] |= stack[sp];
+                    break;
+                case Code.XOR:
+                    sp--;
+                    stack[sp - 1] ^= stack[sp];
+                    break;
+                case Code.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case Code.CMP_I:
+                    sp--;
+                    stack[sp - 1] = Long.compare(stack[sp - 1], stack[sp]);
+                    break;
+                case Code.CMP_U:
+                    sp--;
+                    stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], stack[sp]);
+                    break;
+                case Code.CMP_F:
+                    sp--;
+                    stack[sp - 1] = compareDouble(stack[sp - 1], stack[sp]);
+                    break;
+                case Code.NEG_I:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case Code.NEG_F:
+                    stack[sp - 1] = bits(-real(stack[sp - 1]));
+                    break;
+                case Code.ITOF:
+                    stack[sp - 1] = bits((double) stack[sp - 1]);
+                    break;
+                case Code.FTOI:
+                    stack[sp - 1] = (long) real(stack[sp - 1]);
+                    break;
+                case Code.SET_LT:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case Code.SET_GT:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case Code.BR:
+                    ip = (int) x;
+                    break;
+                case Code.LOOP:
+                    ip = (int) x;
+                    if (backEdges != null) {
+                        backEdges[ip]++;
+                    }
+                    if (jit != null) {
+                        this.sp = sp;
+                        this.ip = ip;
+                        if (loop()) {
+                            // 编译好的代码执行完了整个函数
+                            if (ret()) {
+                                return;
+                            }
+                            ops = code.ops;
+                            operands = code.operands;
+                            sp = this.sp;
+                            ip = this.ip;
+                            bp = this.bp;
+                            locBase = this.locBase;
+                            if (profile != null) {
+                                hits = profile.hits(fn);
+                                backEdges = profile.backEdges(fn);
+                            }
+                        }
+                    }
+                    break;
+                // 向后的条件跳转也是循环的回边，profile 时计数（profile 时不合并，只会走到这里）
+                case Code.BR_FALSE:
+                    if (stack[--sp] == 0) {
+                        if (backEdges != null && x < ip) {
+                            backEdges[(int) x]++;
+                        }
+                        ip = (int) x;
+                    }
+                    break;
+                case Code.BR_TRUE:
+                    if (stack[--sp] != 0) {
+                        if (backEdges != null && x < ip) {
+                            backEdges[(int) x]++;
+                        }
+                        ip = (int) x;
+                    }
+                    break;
+                case Code.BR_LT:
+                    sp -= 2;
+                    ip = stack[sp] < stack[sp + 1] ? (int) x : ip + 2;
+                    break;
+                case Code.BR_GE:
+                    sp -= 2;
+                    ip = stack[sp] < stack[sp + 1] ? ip + 2 : (int) x;
+                    break;
+                case Code.BR_GT:
+                    sp -= 2;
+                    ip = stack[sp] > stack[sp + 1] ? (int) x : ip + 2;
+                    break;
+                case Code.BR_LE:
+                    sp -= 2;
+                    ip = stack[sp] > stack[sp + 1] ? ip + 2 : (int) x;
+                    break;
+                case Code.BR_EQ:
+                    sp -= 2;
+                    ip = stack[sp] == stack[sp + 1] ? (int) x : ip + 1;
+                    break;
+                case Code.BR_NE:
+                    sp -= 2;
+                    ip = stack[sp] != stack[sp + 1] ? (int) x : ip + 1;
+                    break;
+                case Code.CALL:
+                case Code.RET:
+                case Code.END:
+                    this.sp = sp;
+                    this.ip = ip;
+                    if (op == Code.CALL) {
+                        call(x);
+                    } else if (op == Code.RET ? ret() : end()) {
+                        return;
+                    }
+                    ops = code.ops;
+                    operands = code.operands;
+                    sp = this.sp;
+                    ip = this.ip;
+                    bp = this.bp;
+                    locBase = this.locBase;
+                    if (profile != null) {
+                        hits = profile.hits(fn);
+                        backEdges = profile.backEdges(fn);
+                    }
+                    break;
+                case Code.BAD_BRANCH:
+                    throw error(ip, "branch target " + x + " out of range");
+                case Code.PANIC:
+                    throw error(ip, "panic");
+                default:
+                    // 不常用的指令
+                    this.sp = sp;
+                    this.ip = ip;
+                    slowStep(op, x);
+                    sp = this.sp;
+                    break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            this.ip = ip;
+            throw error(sp <= 0 ? "stack underflow" : "stack overflow: max depth is " + stack.length);
+        }
+    }
+
+    /**
+     * 执行到函数末尾，_start 时程序结束，返回 true
+     */
+    private boolean end() {
+        // 只剩 _start 的帧
+        if (fp == 3) {
+            return true;
+        }
+        ip = code.size + 1;
+        throw error("function " + functions[fn].getName() + " ends without ret");
+    }
+
+    /**
+     * 不在 execute 里直接处理的指令，状态都在字段里
+     */
+    private void slowStep(int op, long x) {
+        switch (op) {
+        case Code.GLOBA:
+            // 下标正确的 globa 已经在预解码时换成了 push
+            throw error("global " + x + " does not exist");
+        case Code.LOAD8:
+            push(load(pop(), 1));
+            break;
+        case Code.LOAD16:
+            push(load(pop(), 2));
+            break;
+        case Code.LOAD32:
+            push(load(pop(), 4));
+            break;
+        case Code.STORE8:
+            store(1);
+            break;
+        case Code.STORE16:
+            store(2);
+            break;
+        case Code.STORE32:
+            store(4);
+            break;
+        case Code.ALLOC:
+            push(alloc(pop()));
+            break;
+        case Code.FREE:
+            free(pop());
+            break;
+        case Code.STACKALLOC:
+            stackalloc(x);
+            break;
+        case Code.CALLNAME:
+            callBuiltin(x);
+            break;
+        case Code.SCAN_I:
+            push(readInt());
+            break;
+        case Code.SCAN_C:
+            push(readChar());
+            break;
+        case Code.SCAN_F:
+            push(bits(readDouble()));
+            break;
+        case Code.PRINT_I:
+            out.print(pop());
+            break;
+        case Code.PRINT_C:
+            out.print((char) pop());
+            break;
+        case Code.PRINT_F:
+            printDouble(real(pop()));
+            break;
+        case Code.PRINT_S:
+            printString(pop());
+            break;
+        case Code.PRINTLN:
+            out.print('\n');
+            break;
+        default:
+            throw error(String.format("unsupported instruction %02x", op));
+        }
+    }
+
+    private void push(long value) {
+        if (sp == stack.length) {
+            throw error("stack overflow: max depth is " + stack.length);
+        }
+        stack[sp++] = value;
+    }
+
+    private long pop() {
+        if (sp == 0) {
+            throw error("stack underflow");
+        }
+        return stack[--sp];
+    }
+
+    private void stackalloc(long n) {
+        if (n < 0 || n > stack.length - sp) {
+            throw error("stack overflow: max depth is " + stack.length);
+        }
+        Arrays.fill(stack, sp, sp + (int) n, 0);
+        sp += (int) n;
+    }
+
+    /**
+     * 进入第 target 个函数，参数和返回值的 slot 已经在栈上
+     */
+    private void enter(int target, int returnIp) {
+        var function = functions[target];
+        int newBp = sp - function.getParamSlots() - function.getRetSlots();
+        if (newBp < 0) {
+            throw error("stack underflow: not enough arguments for " + function.getName());
+        }
+        if (fp + 3 > frames.length) {
+            if (fp / 3 >= stack.length) {
+                throw error("stack overflow: too many nested calls");
+            }
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[fp++] = fn;
+        frames[fp++] = returnIp;
+        frames[fp++] = bp;
+        if (profile != null) {
+            profile.enter(target);
+        }
+        fn = target;
+        ip = 0;
+        bp = newBp;
+        code = codes[target];
+        locBase = newBp + function.getRetSlots() + function.getParamSlots();
+        stackalloc(function.getLocSlots());
+    }
+
+    /**
+     * 进入被调用的函数，编译好了就直接执行完
+     */
+    private void call(long target) {
+        // 第 0 个函数是 _start，不能调用
+        if (target <= 0 || target >= functions.length) {
+            throw error("function " + target + " does not exist");
+        }
+        enter((int) target, ip);
+        if (jit != null && jit.countCall(fn) && runCompiled(0)) {
+            ret();
+        }
+    }
+
+    /**
+     * 循环回到了第 ip 条指令，编译好了就从这里开始执行完整个函数，返回 true
+     */
+    private boolean loop() {
+        return jit.countLoop(fn) && runCompiled(ip);
+    }
+
+    /**
+     * 用编译好的代码从 entry 开始执行当前函数，执行到 ret 时返回 true，帧还没有弹出
+     *
+     * 没有编译好、没有这个入口、栈上放不下或者嵌套太深时返回 false，继续解释执行。
+     */
+    private boolean runCompiled(int entry) {
+        var compiled = jit.get(fn);
+        if (compiled == null || !jit.hasEntry(fn, entry) || jitDepth >= MAX_JIT_DEPTH
+                || bp + jit.frameSlots(fn) > stack.length) {
+            return false;
+        }
+        jitDepth++;
+        compiled.run(this, stack, bp, entry);
+        jitDepth--;
+        return true;
+    }
+
+    /**
+     * 返回到调用者，_start 返回或者回到了编译好的代码时返回 true
+     */
+    private boolean ret() {
+        if (profile != null) {
+            profile.exit();
+        }
+        sp = bp + functions[fn].getRetSlots();
+        fp -= 3;
+        if (fp == 0) {
+            return true;
+        }
+        bp = frames[fp + 2];
+        ip = frames[fp + 1];
+        fn = frames[fp];
+        var function = functions[fn];
+        code = codes[fn];
+        locBase = bp + function.getRetSlots() + function.getParamSlots();
+        return fp == exitFp;
+    }
+
+    /**
+     * callname：按名字调用标准库函数，返回值写进调用者 stackalloc 的 slot
+     */
+    private void callBuiltin(long index) {
+        var builtin = index >= 0 && index < builtins.length ? builtins[(int) index] : null;
+        if (builtin == null) {
+            throw error("callname " + index + " is not a library function");
+        }
+        switch (builtin) {
+        case GETINT:
+            setTop(readInt());
+            break;
+        case GETDOUBLE:
+            setTop(bits(readDouble()));
+            break;
+        case GETCHAR:
+            setTop(readChar());
+            break;
+        case PUTINT:
+            out.print(pop());
+            break;
+        case PUTDOUBLE:
+            printDouble(real(pop()));
+            break;
+        case PUTCHAR:
+            out.print((char) pop());
+            break;
+        case PUTSTR:
+            printString(pop());
+            break;
+        case PUTLN:
+            out.print('\n');
+            break;
+        default:
+            throw error("unsupported library function " + builtin.getName());
+        }
+    }
+
+    private void setTop(long value) {
+        if (sp == 0) {
+            throw error("stack underflow");
+        }
+        stack[sp - 1] = value;
+    }
+
+    private long load(long address, int width) {
+        if (address >= DATA_BASE) {
+            int offset = dataOffset(address, width);
+            if (width == 8) {
+                return (long) LONGS.get(data, offset);
+            }
+            long value = 0;
+            for (int i = width - 1; i >= 0; i--) {
+                value = (value << 8) | (data[offset + i] & 0xff);
+            }
+            return value;
+        }
+        int slot = stackSlot(address, width);
+        long value = stack[slot] >>> ((address & 7) << 3);
+        return width == 8 ? value : value & ((1L << (width << 3)) - 1);
+    }
+
+    /**
+     * store.x：栈顶是值，下面是地址
+     */
+    private void store(int width) {
+        long value = pop();
+        long address = pop();
+        store(address, value, width);
+    }
+
+    private void store(long address, long value, int width) {
+        if (address >= DATA_BASE) {
+            int offset = dataOffset(address, width);
+            if (width == 8) {
+                LONGS.set(data, offset, value);
+                return;
+            }
+            for (int i = 0; i < width; i++) {
+                data[offset + i] = (byte) (value >>> (i << 3));
+            }
+            return;
+        }
+        int slot = stackSlot(address, width);
+        if (width == 8) {
+            stack[slot] = value;
+            return;
+        }
+        int shift = (int) (address & 7) << 3;
+        long mask = ((1L << (width << 3)) - 1) << shift;
+        stack[slot] = (stack[slot] & ~mask) | ((value << shift) & mask);
+    }
+
+    private int stackSlot(long address, int width) {
+        if (address < 0 || (address & 7) + width > 8 || (address >>> 3) >= sp) {
+            throw error("invalid stack address " + address);
+        }
+        return (int) (address >>> 3);
+    }
+
+    private int dataOffset(long address, int width) {
+        long offset = address - DATA_BASE;
+        if (offset + width > dataTop) {
+            throw error("invalid address " + address);
+        }
+        return (int) offset;
+    }
+
+    /**
+     * alloc：在数据区末尾分配，free 不回收
+     */
+    private long alloc(long size) {
+        if (size < 0 || size > Integer.MAX_VALUE - 8 - dataTop) {
+            throw error("cannot alloc " + size + " bytes");
+        }
+        long address = DATA_BASE + dataTop;
+        int top = dataTop + align((int) size);
+        if (top > data.length) {
+            data = Arrays.copyOf(data, Math.max(top, data.length * 2));
+        }
+        dataTop = top;
+        return address;
+    }
+
+    private void free(long address) {
+        if (address < DATA_BASE || address - DATA_BASE >= dataTop) {
+            throw error("invalid free of address " + address);
+        }
+    }
+
+    private void printString(long index) {
+        var globals = module.getGlobals();
+        if (index < 0 || index >= globals.size()) {
+            throw error("global " + index + " does not exist");
+        }
+        out.print(new String(globals.get((int) index), StandardCharsets.UTF_8));
+    }
+
+    private void printDouble(double value) {
+        out.print(String.format(Locale.ROOT, "%.6f", value));
+    }
+
+    private int read() {
+        try {
+            return in.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void unread(int c) {
+        try {
+            in.unread(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 读之前先把已经输出的提示刷出去
+     */
+    private int readChar() {
+        out.flush();
+        int c = read();
+        if (c == -1) {
+            throw error("unexpected end of input");
+        }
+        return c;
+    }
+
+    /**
+     * 跳过空白读一个词
+     */
+    private String readToken() {
+        out.flush();
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        if (c == -1) {
+            throw error("unexpected end of input");
+        }
+        var sb = new StringBuilder();
+        while (c != -1 && !Character.isWhitespace(c)) {
+            sb.append((char) c);
+            c = read();
+        }
+        if (c != -1) {
+            unread(c);
+        }
+        return sb.toString();
+    }
+
+    private long readInt() {
+        var token = readToken();
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw error("invalid integer input: " + token);
+        }
+    }
+
+    private double readDouble() {
+        var token = readToken();
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            throw error("invalid double input: " + token);
+        }
+    }
+
+    /**
+     * cmp.f，有 NaN 时是 0，和 ConstantFolder 一致
+     */
+    static long compareDouble(long left, long right) {
+        double l = real(left);
+        double r = real(right);
+        return l < r ? -1 : l > r ? 1 : 0;
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * 报错信息里带上当前函数和指令下标
+     */
+    private VmError error(String message) {
+        return error(ip, message);
+    }
+
+    /**
+     * @param ip 出错的指令的下一条
+     */
+    VmError error(int ip, String message) {
+        String where = fn < functions.length ? functions[fn].getName() : String.valueOf(fn);
+        return new VmError(message + " (in " + where + " at instruction " + (ip - 1) + ")");
+    }
+
+    // 下面的方法给 JIT 生成的代码调用，ip 都是指令下标加 1，和 error 相同
+
+    /**
+     * 编译好的代码调用第 target 个函数，sp 以下是它的帧和压好的参数
+     */
+    void invoke(int target, int sp, int ip) {
+        this.sp = sp;
+        this.ip = ip;
+        int depth = fp;
+        call(target);
+        if (fp == depth) {
+            // 编译好了，已经执行完
+            return;
+        }
+        int savedExitFp = exitFp;
+        exitFp = depth;
+        execute();
+        exitFp = savedExitFp;
+    }
+
+    long loadGlobal(int offset) {
+        return (long) LONGS.get(data, offset);
+    }
+
+    void storeGlobal(int offset, long value) {
+        LONGS.set(data, offset, value);
+    }
+
+    long divide(long l, long r, int ip) {
+        if (r == 0) {
+            throw error(ip, "division by zero");
+        }
+        if (l == Long.MIN_VALUE && r == -1) {
+            throw error(ip, "division overflow");
+        }
+        return l / r;
+    }
+
+    long divideUnsigned(long l, long r, int ip) {
+        if (r == 0) {
+            throw error(ip, "division by zero");
+        }
+        return Long.divideUnsigned(l, r);
+    }
+
+    long getInt(int ip) {
+        this.ip = ip;
+        return readInt();
+    }
+
+    long getChar(int ip) {
+        this.ip = ip;
+        return readChar();
+    }
+
+    long getDouble(int ip) {
+        this.ip = ip;
+        return bits(readDouble());
+    }
+
+    void putInt(long value) {
+        out.print(value);
+    }
+
+    void putChar(long value) {
+        out.print((char) value);
+    }
+
+    void putDouble(long value) {
+        printDouble(real(value));
+    }
+
+    void putStr(long index, int ip) {
+        this.ip = ip;
+        printString(index);
+    }
+
+    void putLn() {
+        out.print('\n');
+    }
+}
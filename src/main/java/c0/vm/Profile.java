@@ -0,0 +1,332 @@
+package c0.vm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import c0.instruction.CodeBuffer;
+import c0.instruction.Function;
+import c0.instruction.Opcode;
+
+/**
+ * Navm 执行时的统计：每条指令执行了几次、每个函数的调用次数和用时、每个循环开头被跳回了几次
+ * （向后的 br、br.true、br.false 跳转成功都算一次）
+ *
+ * 用 Navm.setProfile 打开，可以跨多次 run 累加。打开后解释器不合并超级指令，每条指令单独计数，
+ * 按操作码的次数、相邻两条指令一起执行的次数在输出报告时由每条指令的次数算出来。
+ * JIT 编译好的代码里执行的指令不计数，函数的调用次数和用时照常统计。
+ */
+public class Profile {
+    /** 报告里每一节最多列出几行，JSON 里全部列出 */
+    private static final int TOP = 20;
+
+    private Function[] functions;
+
+    /** 每个函数每条指令执行的次数 */
+    private long[][] hits;
+    /** 每个函数里跳回到每条指令（循环开头）的次数 */
+    private long[][] backEdges;
+
+    private long[] calls;
+    private long[] inclusive;
+    private long[] exclusive;
+
+    // 还没返回的函数：函数、开始时间、调用的函数花的时间
+    private int[] frameFns = new int[16];
+    private long[] frameStarts = new long[16];
+    private long[] frameChildren = new long[16];
+    private int depth = 0;
+    /** 每个函数在调用栈上出现了几次，递归时只算最外层的 inclusive */
+    private int[] active;
+
+    public Profile(Module module) {
+        functions = module.getFunctions().toArray(new Function[0]);
+        int n = functions.length;
+        hits = new long[n][];
+        backEdges = new long[n][];
+        for (int i = 0; i < n; i++) {
+            // 多一个给函数末尾的 END
+            hits[i] = new long[functions[i].getCode().size() + 1];
+            backEdges[i] = new long[functions[i].getCode().size() + 1];
+        }
+        calls = new long[n];
+        inclusive = new long[n];
+        exclusive = new long[n];
+        active = new int[n];
+    }
+
+    long[] hits(int fn) {
+        return hits[fn];
+    }
+
+    long[] backEdges(int fn) {
+        return backEdges[fn];
+    }
+
+    /**
+     * 进入第 fn 个函数
+     */
+    void enter(int fn) {
+        if (depth == frameFns.length) {
+            frameFns = Arrays.copyOf(frameFns, depth * 2);
+            frameStarts = Arrays.copyOf(frameStarts, depth * 2);
+            frameChildren = Arrays.copyOf(frameChildren, depth * 2);
+        }
+        calls[fn]++;
+        active[fn]++;
+        frameFns[depth] = fn;
+        frameChildren[depth] = 0;
+        frameStarts[depth] = System.nanoTime();
+        depth++;
+    }
+
+    /**
+     * 最里层的函数返回
+     */
+    void exit() {
+        exit(System.nanoTime());
+    }
+
+    private void exit(long now) {
+        depth--;
+        int fn = frameFns[depth];
+        long elapsed = now - frameStarts[depth];
+        exclusive[fn] += elapsed - frameChildren[depth];
+        if (--active[fn] == 0) {
+            inclusive[fn] += elapsed;
+        }
+        if (depth > 0) {
+            frameChildren[depth - 1] += elapsed;
+        }
+    }
+
+    /**
+     * 程序结束（包括出错）时还没返回的函数都算到现在
+     */
+    void finish() {
+        long now = System.nanoTime();
+        while (depth > 0) {
+            exit(now);
+        }
+    }
+
+    /** 解释执行的指令条数 */
+    public long getInstructions() {
+        long total = 0;
+        for (int fn = 0; fn < functions.length; fn++) {
+            total += instructions(fn);
+        }
+        return total;
+    }
+
+    /** 一个函数、一个操作码、一对指令或者一个循环开头，和它的次数 */
+    private static final class Entry {
+        final String name;
+        final long count;
+
+        Entry(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    private static final Comparator<Entry> BY_COUNT = Comparator.comparingLong((Entry e) -> e.count).reversed();
+
+    /**
+     * 按操作码统计，END（执行到函数末尾）不算
+     */
+    private List<Entry> opcodes() {
+        var counts = new long[256];
+        for (int fn = 0; fn < functions.length; fn++) {
+            var code = functions[fn].getCode();
+            for (int i = 0; i < code.size(); i++) {
+                counts[code.opcode(i).getCode()] += hits[fn][i];
+            }
+        }
+        var entries = new ArrayList<Entry>();
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] > 0) {
+                entries.add(new Entry(Opcode.of(c).toString(), counts[c]));
+            }
+        }
+        entries.sort(BY_COUNT);
+        return entries;
+    }
+
+    /**
+     * 相邻两条指令一起执行的次数，也就是合并成超级指令能省掉的分派次数
+     *
+     * 第一条不是跳转、ret、panic 时，执行完一定接着执行第二条，次数就是第一条的次数；
+     * 第二条是跳转目标时不能合并，不算。
+     */
+    private List<Entry> pairs() {
+        var counts = new HashMap<String, Long>();
+        for (int fn = 0; fn < functions.length; fn++) {
+            var code = functions[fn].getCode();
+            var targets = branchTargets(code);
+            for (int i = 0; i + 1 < code.size(); i++) {
+                var op = code.opcode(i);
+                if (hits[fn][i] == 0 || targets[i + 1] || isControl(op)) {
+                    continue;
+                }
+                counts.merge(op + " " + code.opcode(i + 1), hits[fn][i], Long::sum);
+            }
+        }
+        var entries = new ArrayList<Entry>();
+        counts.forEach((pair, count) -> entries.add(new Entry(pair, count)));
+        entries.sort(BY_COUNT);
+        return entries;
+    }
+
+    private static boolean isControl(Opcode op) {
+        return op == Opcode.BR || op == Opcode.BR_TRUE || op == Opcode.BR_FALSE || op == Opcode.RET
+                || op == Opcode.PANIC;
+    }
+
+    private static boolean[] branchTargets(CodeBuffer code) {
+        var targets = new boolean[code.size() + 1];
+        for (int i = 0; i < code.size(); i++) {
+            var op = code.opcode(i);
+            long target = code.operand(i) + i + 1;
+            if ((op == Opcode.BR || op == Opcode.BR_TRUE || op == Opcode.BR_FALSE) && target >= 0
+                    && target <= code.size()) {
+                targets[(int) target] = true;
+            }
+        }
+        return targets;
+    }
+
+    /** 函数名 @ 指令下标 */
+    private List<Entry> loops() {
+        var entries = new ArrayList<Entry>();
+        for (int fn = 0; fn < functions.length; fn++) {
+            for (int i = 0; i < backEdges[fn].length; i++) {
+                if (backEdges[fn][i] > 0) {
+                    entries.add(new Entry(functions[fn].getName() + " @" + i, backEdges[fn][i]));
+                }
+            }
+        }
+        entries.sort(BY_COUNT);
+        return entries;
+    }
+
+    /** 最后一个是执行到函数末尾的次数，不是指令，不算 */
+    private long instructions(int fn) {
+        long total = 0;
+        for (int i = 0; i < functions[fn].getCode().size(); i++) {
+            total += hits[fn][i];
+        }
+        return total;
+    }
+
+    /** 调用过的函数，按 exclusive 时间从多到少 */
+    private Integer[] calledFunctions() {
+        return IntStream.range(0, functions.length).filter(fn -> calls[fn] > 0).boxed()
+                .sorted(Comparator.comparingLong((Integer fn) -> exclusive[fn]).reversed())
+                .toArray(Integer[]::new);
+    }
+
+    /**
+     * 输出给人看的报告
+     */
+    public void writeText(PrintStream out) {
+        long total = getInstructions();
+        out.printf("Profile: %d instructions interpreted%n", total);
+
+        out.printf("%nFunctions (by exclusive time):%n");
+        out.printf("%12s %14s %14s %14s  %s%n", "calls", "inclusive ms", "exclusive ms", "instructions", "name");
+        for (int fn : calledFunctions()) {
+            out.printf("%12d %14.3f %14.3f %14d  %s%n", calls[fn], inclusive[fn] / 1e6, exclusive[fn] / 1e6,
+                    instructions(fn), functions[fn].getName());
+        }
+
+        out.printf("%nOpcodes:%n");
+        out.printf("%14s %7s  %s%n", "count", "%", "opcode");
+        for (var entry : top(opcodes())) {
+            out.printf("%14d %6.2f%%  %s%n", entry.count, total == 0 ? 0.0 : entry.count * 100.0 / total,
+                    entry.name);
+        }
+
+        out.printf("%nAdjacent pairs (superinstruction candidates):%n");
+        out.printf("%14s  %s%n", "count", "pair");
+        for (var entry : top(pairs())) {
+            out.printf("%14d  %s%n", entry.count, entry.name);
+        }
+
+        out.printf("%nBack edges (by loop head):%n");
+        out.printf("%14s  %s%n", "count", "target");
+        for (var entry : top(loops())) {
+            out.printf("%14d  %s%n", entry.count, entry.name);
+        }
+    }
+
+    private static List<Entry> top(List<Entry> entries) {
+        return entries.size() > TOP ? entries.subList(0, TOP) : entries;
+    }
+
+    /**
+     * 输出 JSON，时间的单位是纳秒
+     */
+    public void writeJson(PrintStream out) {
+        var sb = new StringBuilder();
+        sb.append("{\n  \"instructions\": ").append(getInstructions()).append(",\n  \"functions\": [");
+        var called = calledFunctions();
+        for (int k = 0; k < called.length; k++) {
+            int fn = called[k];
+            sb.append(k == 0 ? "\n    " : ",\n    ");
+            sb.append("{\"name\": ").append(quote(functions[fn].getName()));
+            sb.append(", \"calls\": ").append(calls[fn]);
+            sb.append(", \"inclusiveNanos\": ").append(inclusive[fn]);
+            sb.append(", \"exclusiveNanos\": ").append(exclusive[fn]);
+            sb.append(", \"instructions\": ").append(instructions(fn)).append('}');
+        }
+        sb.append("\n  ],\n  \"opcodes\": [");
+        appendEntries(sb, opcodes(), "opcode");
+        sb.append("\n  ],\n  \"pairs\": [");
+        appendEntries(sb, pairs(), "pair");
+        sb.append("\n  ],\n  \"backEdges\": [");
+        boolean first = true;
+        for (int fn = 0; fn < functions.length; fn++) {
+            for (int i = 0; i < backEdges[fn].length; i++) {
+                if (backEdges[fn][i] > 0) {
+                    sb.append(first ? "\n    " : ",\n    ");
+                    first = false;
+                    sb.append("{\"function\": ").append(quote(functions[fn].getName()));
+                    sb.append(", \"target\": ").append(i);
+                    sb.append(", \"count\": ").append(backEdges[fn][i]).append('}');
+                }
+            }
+        }
+        sb.append("\n  ]\n}\n");
+        out.print(sb);
+        out.flush();
+    }
+
+    private static void appendEntries(StringBuilder sb, List<Entry> entries, String key) {
+        for (int k = 0; k < entries.size(); k++) {
+            var entry = entries.get(k);
+            sb.append(k == 0 ? "\n    " : ",\n    ");
+            sb.append("{\"").append(key).append("\": ").append(quote(entry.name));
+            sb.append(", \"count\": ").append(entry.count).append('}');
+        }
+    }
+
+    private static String quote(String s) {
+        var sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,64 @@
+package c0;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 批量编译：一个文件出错不影响别的文件
+ */
+public class BatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** 括号嵌套得很深，分析时栈溢出 */
+    static String deeplyNested() {
+        int depth = 100000;
+        return "fn main() -> void { let x: int = " + "(".repeat(depth) + "1" + ")".repeat(depth) + "; }\n";
+    }
+
+    @Test
+    public void stackOverflowFailsOnlyItsFile() throws Exception {
+        var in = folder.newFolder("in").toPath();
+        Files.writeString(in.resolve("deep.c0"), deeplyNested());
+        Files.writeString(in.resolve("ok.c0"), "fn main() -> void { putint(1); }\n");
+        var out = folder.getRoot().toPath().resolve("out");
+        var args = App.buildArgparse().parseArgs(new String[] { "-l", "--out-dir", out.toString(), in.toString() });
+
+        var summary = new ByteArrayOutputStream();
+        int status = new Batch(2).run(args, Batch.expand(List.of(in.toString())), out,
+                new PrintStream(summary, true, StandardCharsets.UTF_8));
+        var text = summary.toString(StandardCharsets.UTF_8);
+
+        Assert.assertEquals(text, 2, status);
+        Assert.assertTrue(text, text.contains("error  " + in.resolve("deep.c0") + ": Input is nested too deeply"));
+        Assert.assertTrue(text, text.contains("ok     " + in.resolve("ok.c0")));
+        Assert.assertTrue(text, text.contains("2 files, 1 failed"));
+        Assert.assertTrue(Files.exists(out.resolve(Path.of("ok.txt"))));
+    }
+
+    @Test
+    public void sameOutput() throws Exception {
+        var a = folder.newFolder("a").toPath().resolve("x.c0");
+        var b = folder.newFolder("b").toPath().resolve("x.c0");
+        Files.writeString(a, "");
+        Files.writeString(b, "");
+        // 同一个文件给了两次，只编译一次
+        Assert.assertEquals(1, Batch.expand(List.of(a.toString(), a.getParent().toString(), a.toString())).size());
+        try {
+            Batch.expand(List.of(a.toString(), b.toString()));
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals(a + " and " + b + " would write the same output file", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package c0;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 编译服务：每个任务都有回复，出错的任务不影响别的任务
+ */
+public class ServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void everyJobIsAnswered() throws Exception {
+        var deep = folder.getRoot().toPath().resolve("deep.c0");
+        var ok = folder.getRoot().toPath().resolve("ok.c0");
+        Files.writeString(deep, BatchTest.deeplyNested());
+        Files.writeString(ok, "fn main() -> void { putint(1); }\n");
+        var requests = "-l " + deep + " -o " + deep + ".txt\n"
+                + "-l " + ok + " -o " + ok + ".txt\n";
+
+        var server = new Server(2);
+        var replies = new ByteArrayOutputStream();
+        try {
+            server.serve(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)), replies);
+        } finally {
+            server.shutdown();
+        }
+        var lines = replies.toString(StandardCharsets.UTF_8).lines().sorted().toArray(String[]::new);
+
+        Assert.assertEquals(Arrays.toString(lines), 2, lines.length);
+        Assert.assertEquals("1 2 Input is nested too deeply (stack overflow).", lines[0]);
+        Assert.assertEquals("2 0", lines[1]);
+    }
+}
@@ -0,0 +1,134 @@
+package c0.vm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import c0.instruction.Opcode;
+
+/**
+ * 超级指令：合并和不合并（打开 profile 时不合并）执行同一个模块，输出和错误都要一样
+ */
+public class FusionTest {
+    private static String fused(Module module) {
+        return Programs.run(module, "", false, vm -> {
+        });
+    }
+
+    private static String unfused(Module module) {
+        return Programs.run(module, "", false, vm -> vm.setProfile(new Profile(module)));
+    }
+
+    /** 两种方式执行，结果相同，返回结果 */
+    private static String runBoth(Module module) {
+        var expected = unfused(module);
+        Assert.assertEquals(expected, fused(module));
+        return expected;
+    }
+
+    @Test
+    public void globalOutOfRange() {
+        var result = runBoth(Programs.start(0, code -> {
+            code.add(Opcode.PUSH, Navm.DATA_BASE + 1000);
+            code.add(Opcode.LOAD64);
+        }));
+        Assert.assertTrue(result, result.endsWith("at instruction 1)"));
+    }
+
+    @Test
+    public void global() {
+        runBoth(Programs.start(0, code -> {
+            code.add(Opcode.GLOBA, 0);
+            code.add(Opcode.LOAD64);
+            code.add(Opcode.PRINT_I);
+        }));
+    }
+
+    @Test
+    public void localOutOfRange() {
+        var result = runBoth(Programs.start(1, code -> {
+            code.add(Opcode.LOCA, 5);
+            code.add(Opcode.LOAD64);
+        }));
+        Assert.assertTrue(result, result.endsWith("at instruction 1)"));
+    }
+
+    @Test
+    public void localAtStackTop() {
+        // loca 1 正好是 loca 自己压入的地址所在的 slot
+        runBoth(Programs.start(1, code -> {
+            code.add(Opcode.LOCA, 1);
+            code.add(Opcode.LOAD64);
+            code.add(Opcode.PRINT_I);
+        }));
+    }
+
+    @Test
+    public void negativeLocal() {
+        runBoth(Programs.start(1, code -> {
+            code.add(Opcode.LOCA, -1);
+            code.add(Opcode.LOAD64);
+            code.add(Opcode.PRINT_I);
+        }));
+        runBoth(Programs.start(1, code -> {
+            code.add(Opcode.ARGA, -100);
+            code.add(Opcode.LOAD64);
+        }));
+    }
+
+    @Test
+    public void argOutOfRange() {
+        var result = runBoth(Programs.start(1, code -> {
+            code.add(Opcode.ARGA, 3);
+            code.add(Opcode.LOAD64);
+        }));
+        Assert.assertTrue(result, result.endsWith("at instruction 1)"));
+    }
+
+    @Test
+    public void immediateOnEmptyStack() {
+        for (var op : new Opcode[] { Opcode.ADD_I, Opcode.SUB_I, Opcode.MUL_I }) {
+            var result = runBoth(Programs.start(0, code -> {
+                code.add(Opcode.PUSH, 5);
+                code.add(op);
+            }));
+            Assert.assertTrue(result, result.endsWith("at instruction 1)"));
+        }
+    }
+
+    @Test
+    public void compareOnEmptyStack() {
+        runBoth(Programs.start(0, code -> {
+            code.add(Opcode.CMP_I);
+            code.add(Opcode.SET_LT);
+            code.add(Opcode.BR_TRUE, 0);
+        }));
+        runBoth(Programs.start(0, code -> {
+            code.add(Opcode.PUSH, 1);
+            code.add(Opcode.CMP_I);
+            code.add(Opcode.BR_FALSE, 0);
+        }));
+    }
+
+    @Test
+    public void program() throws Exception {
+        var module = Programs.compile("let total: int = 0;\n"
+                + "fn step(x: int, y: int) -> int {\n"
+                + "    let t: int = x * 3 - y / 2;\n"
+                + "    if t > 1000 { t = t - 1000; }\n"
+                + "    return t + 1;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 1000 {\n"
+                + "        s = step(s, i);\n"
+                + "        total = total + s;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(total);\n"
+                + "    putln();\n"
+                + "}\n");
+        var result = runBoth(module);
+        Assert.assertTrue(result, !result.contains("error"));
+    }
+}
@@ -0,0 +1,123 @@
+package c0.vm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * JIT：用很小的阈值执行，输出和错误都要和解释执行完全一样
+ */
+public class JitTest {
+    /** 调用次数、向后跳的次数的阈值 */
+    private static final int[][] THRESHOLDS = { { 1, 1 }, { 2, 3 }, { 5, 7 } };
+
+    /**
+     * 解释执行一次，再用每组阈值各执行一次，结果都要相同
+     *
+     * @param compiled 执行完应该已经编译好的函数
+     * @return 解释执行的结果
+     */
+    private static String runAll(String source, String input, String... compiled) throws Exception {
+        var module = Programs.compile(source);
+        var expected = Programs.run(module, input, false, vm -> {
+        });
+        for (var threshold : THRESHOLDS) {
+            var vms = new Navm[1];
+            var result = Programs.run(module, input, false, vm -> {
+                vm.enableJit(threshold[0], threshold[1]);
+                vms[0] = vm;
+            });
+            Assert.assertEquals(expected, result);
+            for (var name : compiled) {
+                Assert.assertNotNull(name + " is not compiled", vms[0].getJit().get(indexOf(module, name)));
+            }
+        }
+        return expected;
+    }
+
+    private static int indexOf(Module module, String name) {
+        var functions = module.getFunctions();
+        for (int i = 0; i < functions.size(); i++) {
+            if (functions.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    @Test
+    public void loopInMain() throws Exception {
+        // main 只调用一次，只能从循环开头转进编译好的代码
+        var result = runAll("let total: int = 0;\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 1;\n"
+                + "    while i < 1000 {\n"
+                + "        s = s * 3 - i / 2;\n"
+                + "        if s > 100000 { s = s - 99999; }\n"
+                + "        total = total + s;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s); putln(); putint(total); putln();\n"
+                + "}\n", "", "main");
+        Assert.assertFalse(result, result.contains("error"));
+    }
+
+    @Test
+    public void nestedCalls() throws Exception {
+        // 编译好的 f 在 i == 5 时调用 g，阈值大于 1 时 g 只调用一次，一直解释执行，g 又调用编译好的 h
+        var result = runAll("let n: int = 0;\n"
+                + "fn h(a: int) -> int {\n"
+                + "    n = n + 1;\n"
+                + "    return a * 2 + n;\n"
+                + "}\n"
+                + "fn g(a: int) -> int {\n"
+                + "    let t: int = h(a) + h(a + 1);\n"
+                + "    putint(t); putln();\n"
+                + "    return t;\n"
+                + "}\n"
+                + "fn f(a: int) -> int {\n"
+                + "    let t: int = h(a);\n"
+                + "    if a == 5 { t = t + g(a); }\n"
+                + "    return t - a;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 50 {\n"
+                + "        s = s + f(i) + h(i);\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s); putln(); putint(n); putln();\n"
+                + "}\n", "", "main", "f", "h");
+        Assert.assertFalse(result, result.contains("error"));
+    }
+
+    @Test
+    public void divisionByZero() throws Exception {
+        var result = runAll("fn f(a: int) -> int {\n"
+                + "    return 100 / (a - 20);\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 30 {\n"
+                + "        putint(f(i)); putln();\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "}\n", "", "f");
+        Assert.assertTrue(result, result.contains("error: division by zero (in f at instruction"));
+    }
+
+    @Test
+    public void input() throws Exception {
+        runAll("fn f(a: int) -> int {\n"
+                + "    return a + getint();\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 8 {\n"
+                + "        putint(f(i)); putln();\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "}\n", "1 2 3 4 5 6 7 8", "f");
+    }
+}
@@ -0,0 +1,54 @@
+package c0.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import c0.instruction.Opcode;
+
+/**
+ * Profile：指令条数和回边的计数
+ */
+public class ProfileTest {
+    /** x 从 0 加到 5，循环末尾用 br.true 跳回开头 */
+    private static Module loop() {
+        return Programs.start(1, code -> {
+            code.add(Opcode.LOCA, 0);
+            code.add(Opcode.LOCA, 0);
+            code.add(Opcode.LOAD64);
+            code.add(Opcode.PUSH, 1);
+            code.add(Opcode.ADD_I);
+            code.add(Opcode.STORE64);
+            code.add(Opcode.LOCA, 0);
+            code.add(Opcode.LOAD64);
+            code.add(Opcode.PUSH, 5);
+            code.add(Opcode.CMP_I);
+            code.add(Opcode.SET_LT);
+            code.add(Opcode.BR_TRUE, -12);
+        });
+    }
+
+    private static Profile profile(Module module) {
+        var profile = new Profile(module);
+        Programs.run(module, "", false, vm -> vm.setProfile(profile));
+        return profile;
+    }
+
+    @Test
+    public void instructions() {
+        // 执行到函数末尾不算一条指令
+        Assert.assertEquals(12 * 5, profile(loop()).getInstructions());
+    }
+
+    @Test
+    public void conditionalBackEdge() {
+        var output = new ByteArrayOutputStream();
+        profile(loop()).writeJson(new PrintStream(output, true, StandardCharsets.UTF_8));
+        var json = output.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(json, json.contains("{\"function\": \"_start\", \"target\": 0, \"count\": 4}"));
+        Assert.assertTrue(json, json.contains("\"instructions\": 60,"));
+    }
+}
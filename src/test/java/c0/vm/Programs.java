@@ -0,0 +1,66 @@
+package c0.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+
+import c0.analyser.Analyser;
+import c0.emitter.ModuleEmitter;
+import c0.error.CompileError;
+import c0.error.VmError;
+import c0.instruction.CodeBuffer;
+import c0.instruction.Function;
+import c0.tokenizer.Static;
+import c0.tokenizer.StringIter;
+import c0.tokenizer.Tokenizer;
+
+/**
+ * 测试用的模块：编译 C0 源程序，或者手写只有 _start 的模块；以及执行模块、收集输出
+ */
+final class Programs {
+    private Programs() {
+    }
+
+    static Module compile(String source) throws CompileError {
+        var tokens = new Tokenizer(new StringIter(source)).tokenizeAll();
+        var pair = new Static(tokens).analyse();
+        var emitter = new ModuleEmitter();
+        emitter.begin(pair.getKey());
+        var analyser = new Analyser(tokens, pair.getKey(), emitter, pair.getValue());
+        analyser.analyse();
+        emitter.finish();
+        return emitter.getModule();
+    }
+
+    /**
+     * 只有一个 _start 的模块，唯一的全局变量是函数名 _start
+     */
+    static Module start(int locSlots, Consumer<CodeBuffer> body) {
+        var code = new CodeBuffer();
+        body.accept(code);
+        var function = new Function("_start", 0, 0, 0, locSlots, code);
+        return new Module(List.of("_start".getBytes(StandardCharsets.UTF_8)), List.of(function));
+    }
+
+    /**
+     * 执行一次，返回输出；出错时在后面接上错误信息
+     *
+     * @param setup 执行前对 Navm 的设置，比如打开 profile
+     */
+    static String run(Module module, String input, boolean jit, Consumer<Navm> setup) {
+        var output = new ByteArrayOutputStream();
+        var out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        var vm = new Navm(module, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out,
+                Navm.DEFAULT_MAX_DEPTH, jit);
+        setup.accept(vm);
+        try {
+            vm.run();
+        } catch (VmError e) {
+            out.print("\nerror: " + e.getMessage());
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}